@@ -0,0 +1,82 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+
+// The proxy classes are in the default package, which cannot be imported from a named package, and JMH does not
+// accept benchmarks in the default package. The cache is called through static final method handles instead,
+// which the JIT compiles like direct calls
+final class CacheAccess {
+    private static final MethodHandle NEW_CACHE;
+    private static final MethodHandle ADD;
+    private static final MethodHandle GET;
+    private static final MethodHandle SEND;
+    private static final MethodHandle GENERATE_KEY;
+
+    static {
+        try {
+            Class<?> cacheClass = Class.forName("Cache");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NEW_CACHE = lookup.findConstructor(cacheClass, MethodType.methodType(void.class, int.class, long.class, long.class, String.class))
+                    .asType(MethodType.methodType(Object.class, int.class, long.class, long.class, String.class));
+            ADD = lookup.findVirtual(cacheClass, "addHtmlDocToCache", MethodType.methodType(void.class, String.class, byte[].class))
+                    .asType(MethodType.methodType(void.class, Object.class, String.class, byte[].class));
+            GET = lookup.findVirtual(cacheClass, "getHtmlDocFromCache", MethodType.methodType(byte[].class, String.class))
+                    .asType(MethodType.methodType(byte[].class, Object.class, String.class));
+            SEND = lookup.findVirtual(cacheClass, "sendHtmlDocFromCache",
+                            MethodType.methodType(boolean.class, String.class, WritableByteChannel.class))
+                    .asType(MethodType.methodType(boolean.class, Object.class, String.class, WritableByteChannel.class));
+            Method generateCacheKey = cacheClass.getDeclaredMethod("generateCacheKey", String.class); // Private
+            generateCacheKey.setAccessible(true);
+            GENERATE_KEY = lookup.unreflect(generateCacheKey)
+                    .asType(MethodType.methodType(String.class, Object.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Object cache;
+
+    CacheAccess(int cacheSize, long hotTierCapacity, long maxObjectSize, String cacheDirectory) {
+        try {
+            this.cache = (Object) NEW_CACHE.invokeExact(cacheSize, hotTierCapacity, maxObjectSize, cacheDirectory);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void addHtmlDocToCache(String url, byte[] document) {
+        try {
+            ADD.invokeExact(cache, url, document);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    byte[] getHtmlDocFromCache(String url) {
+        try {
+            return (byte[]) GET.invokeExact(cache, url);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean sendHtmlDocFromCache(String url, WritableByteChannel channel) {
+        try {
+            return (boolean) SEND.invokeExact(cache, url, channel);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    String generateCacheKey(String url) {
+        try {
+            return (String) GENERATE_KEY.invokeExact(cache, url);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
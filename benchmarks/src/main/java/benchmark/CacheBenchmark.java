@@ -0,0 +1,160 @@
+package benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Cache operations under contention: every benchmark runs on 4 threads (override with -t), the mixed group runs
+// 3 readers against 1 writer that keeps evicting. The cache works on a temporary directory
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+    private static final long HOT_TIER_BYTES = 256L * 1024 * 1024; // Every preloaded document fits in memory
+    private static final long MAX_OBJECT_BYTES = 16L * 1024 * 1024;
+    private static final int EVICTION_KEY_FACTOR = 4; // Keys of the eviction benchmarks per cache entry
+
+    @Param({"1000"})
+    public int cacheSize;
+
+    @Param({"2048"})
+    public int documentSize;
+
+    private Path directory;
+    private CacheAccess cache;
+    private byte[] document;
+    private String[] residentUrls; // Preloaded, hits as long as nothing is evicted
+    private String[] evictingUrls; // Mostly not in the cache, every add evicts a document
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("cache-benchmark");
+        cache = new CacheAccess(cacheSize, HOT_TIER_BYTES, MAX_OBJECT_BYTES, directory.toString());
+        document = response(documentSize);
+        residentUrls = new String[cacheSize];
+        for (int i = 0; i < cacheSize; i++) {
+            residentUrls[i] = "http://localhost:8080/" + (100 + i);
+            cache.addHtmlDocToCache(residentUrls[i], document);
+        }
+        evictingUrls = new String[cacheSize * EVICTION_KEY_FACTOR];
+        for (int i = 0; i < evictingUrls.length; i++) {
+            evictingUrls[i] = "http://localhost:9090/" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private static byte[] response(int bodySize) { // A cacheable response, as stored by the proxy
+        StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n")
+                .append("Content-Type: text/html\r\n")
+                .append("Content-Length: ").append(bodySize).append("\r\n")
+                .append("Cache-Control: max-age=3600\r\n\r\n");
+        for (int i = 0; i < bodySize; i++) {
+            response.append('a');
+        }
+        return response.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor { // Per thread pseudo-random key order, without contention on a shared Random
+        private long state = System.nanoTime() | 1;
+
+        String next(String[] urls) {
+            state ^= state << 13; // Xorshift
+            state ^= state >>> 7;
+            state ^= state << 17;
+            return urls[(int) ((state >>> 1) % urls.length)];
+        }
+    }
+
+    @Benchmark
+    public String generateCacheKey(Cursor cursor) {
+        return cache.generateCacheKey(cursor.next(residentUrls));
+    }
+
+    @Benchmark
+    public byte[] getHtmlDocFromCache(Cursor cursor) { // Hot tier hit, copied to the heap
+        return cache.getHtmlDocFromCache(cursor.next(residentUrls));
+    }
+
+    @Benchmark
+    public boolean sendHtmlDocFromCache(Cursor cursor) { // Hot tier hit, written without a heap copy
+        return cache.sendHtmlDocFromCache(cursor.next(residentUrls), DiscardChannel.INSTANCE);
+    }
+
+    @Benchmark
+    public void addHtmlDocToCache(Cursor cursor) { // Replaces a resident document, nothing is evicted
+        cache.addHtmlDocToCache(cursor.next(residentUrls), document);
+    }
+
+    @Benchmark
+    public void addHtmlDocToCacheWithEviction(Cursor cursor) {
+        cache.addHtmlDocToCache(cursor.next(evictingUrls), document);
+    }
+
+    @Benchmark
+    @Group("readWhileEvicting")
+    @GroupThreads(3)
+    public byte[] reader(Cursor cursor) { // Hit or miss, depending on what the writer evicted
+        return cache.getHtmlDocFromCache(cursor.next(evictingUrls));
+    }
+
+    @Benchmark
+    @Group("readWhileEvicting")
+    @GroupThreads(1)
+    public void writer(Cursor cursor) {
+        cache.addHtmlDocToCache(cursor.next(evictingUrls), document);
+    }
+
+    private static final class DiscardChannel implements WritableByteChannel { // Consumes the bytes like a fast socket
+        private static final DiscardChannel INSTANCE = new DiscardChannel();
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+// End-to-end load over loopback: concurrent keep-alive clients request documents from the origin server through
+// the proxy, then requests/sec and latency percentiles are reported. The origin serves /<size> with a body of that
+// size, so every key is a document size. Key popularity follows a Zipf distribution over a random permutation of
+// the keys, so the popular documents are not simply the smallest ones.
+//
+// Every client waits for its response before sending the next request (closed loop), so latencies measured while
+// the proxy stalls are under-reported; compare runs at the same concurrency.
+//
+// With several proxies, the clients are spread over them. Spawned proxies share their caches as peers, and the
+// documents they cache and the bytes they fetched from the origin are read from their metrics after the run.
+//
+//   java -cp benchmarks.jar benchmark.LoadGenerator [options]
+//     -spawn               start HttpServer and the proxies from the class path (fresh caches in a temporary directory)
+//     -engine <name>       connection engine of the spawned servers: selector, virtual or thread (selector),
+//                          optionally with its limits as name:max connections:worker threads
+//     -cache-size <n>      cache size of each spawned proxy (1000)
+//     -proxy-port <port>   port of the first proxy (8888)
+//     -proxies <n>         proxies on consecutive ports (1)
+//     -origin-port <port>  origin requested through the proxy (8080)
+//     -concurrency <n>     client connections (32)
+//     -duration <s>        measured seconds (30)
+//     -warmup <s>          seconds before measuring (5)
+//     -keys <n>            distinct documents (1000)
+//     -zipf <s>            Zipf exponent of key popularity, 0 for uniform (1.0)
+//     -min-size <bytes>    smallest document (100)
+//     -max-size <bytes>    largest document (9999, the proxy rejects larger localhost:8080 documents)
+public final class LoadGenerator {
+    private static final int STARTUP_TIMEOUT_MILLIS = 10000;
+
+    private final String proxyHost = "localhost";
+    private int proxyPort = 8888;
+    private int proxyCount = 1;
+    private int originPort = 8080;
+    private int concurrency = 32;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int keyCount = 1000;
+    private double zipfExponent = 1.0;
+    private int minSize = 100;
+    private int maxSize = 9999;
+    private boolean spawn;
+    private String engine = "selector";
+    private int cacheSize = 1000;
+
+    private byte[][] requests; // Per key, the complete request
+    private double[] popularity; // Cumulative probability of the keys, in request order
+    private volatile long measureStartNanos;
+    private volatile long measureEndNanos;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArguments(args);
+        generator.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("-spawn")) {
+                spawn = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value of " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "-engine" -> engine = value;
+                case "-cache-size" -> cacheSize = Integer.parseInt(value);
+                case "-proxy-port" -> proxyPort = Integer.parseInt(value);
+                case "-proxies" -> proxyCount = Integer.parseInt(value);
+                case "-origin-port" -> originPort = Integer.parseInt(value);
+                case "-concurrency" -> concurrency = Integer.parseInt(value);
+                case "-duration" -> durationSeconds = Integer.parseInt(value);
+                case "-warmup" -> warmupSeconds = Integer.parseInt(value);
+                case "-keys" -> keyCount = Integer.parseInt(value);
+                case "-zipf" -> zipfExponent = Double.parseDouble(value);
+                case "-min-size" -> minSize = Integer.parseInt(value);
+                case "-max-size" -> maxSize = Integer.parseInt(value);
+                default -> throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        if (minSize > maxSize || keyCount < 1 || concurrency < 1 || proxyCount < 1 || zipfExponent < 0) {
+            throw new IllegalArgumentException("Invalid options");
+        }
+        keyCount = Math.min(keyCount, maxSize - minSize + 1); // Keys are distinct sizes
+    }
+
+    private void run() throws Exception {
+        prepareRequests();
+        List<Process> servers = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(Process::destroy)));
+        if (spawn) {
+            spawnServers(servers);
+        }
+
+        long now = System.nanoTime();
+        measureStartNanos = now + warmupSeconds * 1_000_000_000L;
+        measureEndNanos = measureStartNanos + durationSeconds * 1_000_000_000L;
+        Client[] clients = new Client[concurrency];
+        Thread[] threads = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            clients[i] = new Client(proxyPort + i % proxyCount);
+            threads[i] = new Thread(clients[i], "load-client-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report(clients);
+        reportProxies();
+        servers.forEach(Process::destroy);
+    }
+
+    private void prepareRequests() {
+        requests = new byte[keyCount][];
+        long span = maxSize - minSize + 1;
+        for (int key = 0; key < keyCount; key++) { // Sizes spread evenly over the range
+            int size = (int) (minSize + key * span / keyCount);
+            String request = "GET http://localhost:" + originPort + "/" + size + " HTTP/1.1\r\n"
+                    + "Host: localhost:" + originPort + "\r\n\r\n";
+            requests[key] = request.getBytes(StandardCharsets.US_ASCII);
+        }
+        List<byte[]> shuffled = new ArrayList<>(Arrays.asList(requests));
+        Collections.shuffle(shuffled, new Random(42)); // Same popularity order in every run
+        requests = shuffled.toArray(new byte[0][]);
+
+        popularity = new double[keyCount]; // Rank r has weight 1 / r^s
+        double total = 0;
+        for (int rank = 0; rank < keyCount; rank++) {
+            total += 1 / Math.pow(rank + 1, zipfExponent);
+            popularity[rank] = total;
+        }
+        for (int rank = 0; rank < keyCount; rank++) {
+            popularity[rank] /= total;
+        }
+    }
+
+    private int nextKey(ThreadLocalRandom random) {
+        int rank = Arrays.binarySearch(popularity, random.nextDouble());
+        return Math.min((rank >= 0) ? rank : -rank - 1, keyCount - 1);
+    }
+
+    private void spawnServers(List<Process> servers) throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("proxy-load").toFile();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        StringBuilder classPath = new StringBuilder(); // Absolute, the servers run in another directory
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append((classPath.length() == 0) ? "" : File.pathSeparator).append(new File(entry).getAbsolutePath());
+        }
+
+        servers.add(new ProcessBuilder(java, "-cp", classPath.toString(), "HttpServer", Integer.toString(originPort), engine)
+                .directory(directory).redirectErrorStream(true).redirectOutput(new File(directory, "origin.log")).start());
+        File peerList = new File(directory, "peers.txt");
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < proxyCount; i++) {
+            peers.append("localhost:").append(proxyPort + i).append('\n');
+        }
+        Files.writeString(peerList.toPath(), peers);
+        for (int i = 0; i < proxyCount; i++) {
+            int port = proxyPort + i;
+            List<String> command = new ArrayList<>(List.of(java, "-cp", classPath.toString(), "ProxyServer", engine,
+                    Integer.toString(port), "cache-" + port));
+            if (proxyCount > 1) {
+                command.add(peerList.getPath());
+            }
+            Process proxy = new ProcessBuilder(command).directory(directory).redirectErrorStream(true)
+                    .redirectOutput(new File(directory, "proxy-" + port + ".log")).start();
+            servers.add(proxy);
+            try (Writer input = new OutputStreamWriter(proxy.getOutputStream(), StandardCharsets.US_ASCII)) {
+                input.write(cacheSize + "\n"); // The proxy asks for the cache size on startup
+            }
+        }
+        awaitPort(originPort);
+        for (int i = 0; i < proxyCount; i++) {
+            awaitPort(proxyPort + i);
+        }
+        System.out.println("Servers started in " + directory);
+    }
+
+    private void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(proxyHost, port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Nothing is listening on port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void report(Client[] clients) {
+        Histogram latencies = new Histogram();
+        long requestCount = 0;
+        long statusErrorCount = 0;
+        long ioErrorCount = 0;
+        long bytes = 0;
+        for (Client client : clients) {
+            latencies.add(client.latencies);
+            requestCount += client.requestCount;
+            statusErrorCount += client.statusErrorCount;
+            ioErrorCount += client.ioErrorCount;
+            bytes += client.bytes;
+        }
+        System.out.printf("%d clients, %d keys, zipf %.2f, sizes %d-%d, %d s%n",
+                concurrency, keyCount, zipfExponent, minSize, maxSize, durationSeconds);
+        System.out.printf("requests: %d, non-200 responses: %d, connection errors: %d%n",
+                requestCount, statusErrorCount, ioErrorCount);
+        System.out.printf("throughput: %.0f requests/s, %.1f MiB/s%n",
+                requestCount / (double) durationSeconds, bytes / (double) durationSeconds / (1024 * 1024));
+        System.out.printf("latency ms: p50 %.3f, p99 %.3f, p999 %.3f, max %.3f%n",
+                latencies.quantile(0.5) / 1e6, latencies.quantile(0.99) / 1e6,
+                latencies.quantile(0.999) / 1e6, latencies.max / 1e6);
+    }
+
+    private void reportProxies() { // Summed metrics of the proxies, which may be missing if they are not reachable
+        long cachedDocuments = 0;
+        long originBytes = 0;
+        long peerForwards = 0;
+        for (int i = 0; i < proxyCount; i++) {
+            try (Socket socket = new Socket(proxyHost, proxyPort + i)) {
+                socket.getOutputStream().write("GET /admin/metrics HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                String metrics = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                cachedDocuments += metricValue(metrics, "cache_entries");
+                originBytes += metricValue(metrics, "bytes_served_total{source=\"origin\"}");
+                peerForwards += metricValue(metrics, "peer_forwards_total");
+            } catch (IOException e) {
+                System.out.println("Metrics of the proxy on port " + (proxyPort + i) + " are not available");
+                return;
+            }
+        }
+        System.out.printf("proxies: %d, cached documents: %d, fetched from origin: %.1f MiB, forwarded to peers: %d%n",
+                proxyCount, cachedDocuments, originBytes / (1024.0 * 1024), peerForwards);
+    }
+
+    private static long metricValue(String metrics, String name) {
+        for (String line : metrics.split("\n")) {
+            if (line.startsWith(name + " ")) {
+                return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+            }
+        }
+        return 0;
+    }
+
+    private final class Client implements Runnable {
+        private final int port; // Proxy of this client
+        private final Histogram latencies = new Histogram(); // Only touched by this client until it finishes
+        private final byte[] line = new byte[8192];
+        private long requestCount;
+        private long statusErrorCount;
+        private long ioErrorCount;
+        private long bytes;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        private Client(int port) {
+            this.port = port;
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long now;
+            while ((now = System.nanoTime()) < measureEndNanos) {
+                boolean measured = now >= measureStartNanos;
+                byte[] request = requests[nextKey(random)];
+                long start = System.nanoTime();
+                try {
+                    boolean keepAlive = exchange(request, measured);
+                    if (measured) {
+                        latencies.record(System.nanoTime() - start);
+                        requestCount++;
+                    }
+                    if (!keepAlive) {
+                        disconnect();
+                    }
+                } catch (IOException e) {
+                    if (measured) {
+                        ioErrorCount++;
+                    }
+                    disconnect();
+                }
+            }
+            disconnect();
+        }
+
+        private boolean exchange(byte[] request, boolean measured) throws IOException {
+            if (socket == null) {
+                connect();
+            }
+            out.write(request);
+            return readResponse(measured);
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket(proxyHost, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream(), 65536);
+            out = socket.getOutputStream();
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already broken
+                }
+                socket = null;
+            }
+        }
+
+        // Reads one response, returns whether the connection can be reused
+        private boolean readResponse(boolean measured) throws IOException {
+            String statusLine = readLine();
+            boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+            if (measured && !statusLine.startsWith(" 200", 8)) {
+                statusErrorCount++;
+            }
+            long contentLength = -1;
+            boolean chunked = false;
+            String header;
+            while (!(header = readLine()).isEmpty()) {
+                int colon = header.indexOf(':');
+                if (colon < 0) {
+                    continue;
+                }
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+                }
+            }
+            if (chunked) {
+                long chunkSize;
+                while ((chunkSize = Long.parseLong(readLine().split(";", 2)[0].trim(), 16)) > 0) {
+                    skip(chunkSize);
+                    readLine();
+                }
+                while (!readLine().isEmpty()) { // Trailers
+                }
+            } else if (contentLength >= 0) {
+                skip(contentLength);
+            } else { // Delimited by the end of the connection
+                int read;
+                while ((read = in.read(line)) >= 0) {
+                    bytes += read;
+                }
+                return false;
+            }
+            return keepAlive;
+        }
+
+        private String readLine() throws IOException {
+            int length = 0;
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed in the middle of a response");
+                }
+                if (length == line.length) {
+                    throw new IOException("Response line too long");
+                }
+                line[length++] = (byte) b;
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return new String(line, 0, length, StandardCharsets.ISO_8859_1);
+        }
+
+        private void skip(long count) throws IOException {
+            while (count > 0) {
+                int read = in.read(line, 0, (int) Math.min(count, line.length));
+                if (read < 0) {
+                    throw new IOException("Connection closed in the middle of a response");
+                }
+                count -= read;
+                bytes += read;
+            }
+        }
+    }
+
+    // Log-linear histogram of nanoseconds, 8 sub-buckets per power of two, as in the proxy's own metrics
+    private static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long total;
+        private long max;
+
+        void record(long nanos) {
+            counts[index(Math.max(nanos, 1))]++;
+            total++;
+            max = Math.max(max, nanos);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        double quantile(double quantile) { // Upper bound of the bucket holding the quantile
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        private static int index(long value) {
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent < SUB_BUCKET_BITS) {
+                return (int) value;
+            }
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        private static long upperBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+// End-to-end check of request coalescing with a client that stops reading: the first client of a URL starts the
+// fetch and never reads its response, then a second client requests the same URL. The response is far larger than
+// the socket buffers, so the second client only gets all of it if the fetch is not held up by the first client.
+// The origin runs in this process, the proxy is started from the class path with a fresh cache.
+//
+//   java -cp benchmarks.jar benchmark.StalledReaderCheck [proxy port]
+// Exits with status 1 if the second client does not get the whole response in time.
+public final class StalledReaderCheck {
+    private static final int BODY_BYTES = 64 * 1024 * 1024;
+    private static final int STARTUP_TIMEOUT_MILLIS = 10000;
+    private static final int RESPONSE_TIMEOUT_MILLIS = 30000;
+
+    public static void main(String[] args) throws Exception {
+        int proxyPort = (args.length >= 1) ? Integer.parseInt(args[0]) : 8899;
+        boolean passed;
+        try (ServerSocket origin = new ServerSocket(0)) {
+            Thread originThread = new Thread(() -> serveOrigin(origin), "origin");
+            originThread.setDaemon(true);
+            originThread.start();
+            Process proxy = spawnProxy(proxyPort);
+            try {
+                awaitPort(proxyPort);
+                String request = "GET http://localhost:" + origin.getLocalPort() + "/large HTTP/1.1\r\n"
+                        + "Host: localhost\r\nConnection: close\r\n\r\n";
+                try (Socket stalled = new Socket("localhost", proxyPort)) {
+                    stalled.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII)); // Never reads
+                    Thread.sleep(500); // The first client starts the fetch
+                    long startNanos = System.nanoTime();
+                    long received = fetch(proxyPort, request);
+                    long millis = (System.nanoTime() - startNanos) / 1000000;
+                    passed = received == BODY_BYTES;
+                    System.out.println((passed ? "OK" : "FAILED") + ": the second client got " + received + " of "
+                            + BODY_BYTES + " body bytes in " + millis + " ms");
+                }
+            } finally {
+                proxy.destroy();
+                proxy.waitFor();
+            }
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void serveOrigin(ServerSocket origin) { // Every request gets BODY_BYTES of zeros
+        byte[] chunk = new byte[64 * 1024];
+        while (true) {
+            try (Socket socket = origin.accept()) {
+                skipHead(new BufferedInputStream(socket.getInputStream())); // The request is not looked at
+                OutputStream output = socket.getOutputStream();
+                output.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " + BODY_BYTES
+                        + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                for (int sent = 0; sent < BODY_BYTES; sent += chunk.length) {
+                    output.write(chunk, 0, Math.min(chunk.length, BODY_BYTES - sent));
+                }
+            } catch (IOException e) {
+                if (origin.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long fetch(int proxyPort, String request) throws IOException { // Body bytes of the response
+        try (Socket socket = new Socket("localhost", proxyPort)) {
+            socket.setSoTimeout(RESPONSE_TIMEOUT_MILLIS);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            if (!skipHead(input)) {
+                return 0;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long received = 0;
+            try {
+                for (int n; (n = input.read(buffer)) != -1; ) {
+                    received += n;
+                }
+            } catch (IOException e) { // Timed out, the response stalled
+            }
+            return received;
+        }
+    }
+
+    private static boolean skipHead(InputStream input) throws IOException { // Read up to the empty line of a message
+        int matched = 0;
+        while (matched < 4) {
+            int b = input.read();
+            if (b == -1) {
+                return false;
+            }
+            matched = (b == "\r\n\r\n".charAt(matched)) ? matched + 1 : (b == '\r') ? 1 : 0;
+        }
+        return true;
+    }
+
+    private static Process spawnProxy(int port) throws IOException {
+        File directory = Files.createTempDirectory("proxy-stalled-reader").toFile();
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        StringBuilder classPath = new StringBuilder(); // Absolute, the proxy runs in another directory
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append((classPath.length() == 0) ? "" : File.pathSeparator).append(new File(entry).getAbsolutePath());
+        }
+        Process proxy = new ProcessBuilder(java, "-cp", classPath.toString(), "ProxyServer", "selector",
+                Integer.toString(port), "cache").directory(directory).redirectErrorStream(true)
+                .redirectOutput(new File(directory, "proxy.log")).start();
+        try (Writer input = new OutputStreamWriter(proxy.getOutputStream(), StandardCharsets.US_ASCII)) {
+            input.write("10\n"); // The proxy asks for the cache size on startup
+        }
+        return proxy;
+    }
+
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Nothing is listening on port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+}
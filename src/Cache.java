@@ -1,56 +1,224 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 
 public class Cache {
+    private static final int MAX_SEGMENTS = 16; // Upper bound for the number of lock stripes
+    private static final int READ_DRAIN_THRESHOLD = 16; // Recorded hits are applied to the LRU order in batches
+    private static final int MAX_PENDING_READS = 4096; // Hits are only dropped while the policy lock is held this long
+    private static final long DEFAULT_HOT_TIER_BYTES = 64L * 1024 * 1024; // Default memory budget of the hot tier
+    private static final int MAPPED_THRESHOLD = 64 * 1024; // Larger documents are memory-mapped instead of copied
+    private static final long DEFAULT_MAX_OBJECT_BYTES = 16L * 1024 * 1024; // Default size limit of a cached response
+    private static final int MAX_HEADER_BYTES = 8192; // Only this prefix of a response is searched for its headers
+    // Names of the files this cache creates: documents, documents being written, and the index being compacted
+    private static final Pattern CACHE_FILE_NAME =
+            Pattern.compile("[0-9a-f]{32}(\\.[0-9]+\\.part)?|" + Pattern.quote(CacheIndex.LOG_FILE_NAME + ".tmp"));
+
     private final int cacheSize; // Cache size stated from the input
-    private final String cacheDirectory = "cache"; // Directory for cached documents and URLS
-    private final LinkedList<String> cacheListOrder = new LinkedList<>();
-    private final Map<String, String> urlDocMapping = new HashMap<>(); // Have a "absoluteURL":"HTML document" mapping
+    private final String cacheDirectory; // Directory for cached documents and URLS
+    private final long hotTierCapacity; // Maximum number of document bytes kept in memory
+    private final AtomicLong hotTierBytes = new AtomicLong(); // Number of document bytes currently kept in memory
+    private final Map<String, Entry> urlDocMapping = new ConcurrentHashMap<>(); // Have a "absoluteURL":"cache entry" mapping
+    private final ReentrantLock[] segments; // Lock stripes, they order the file and index updates of their URLs
+    private final int segmentMask;
+    // One LRU order for the whole cache, so the evicted document is always the least recently used one. The policy
+    // lock is never held during I/O, hits are queued and applied in batches by whoever takes the lock next
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final LinkedHashMap<String, Entry> coldOrder = new LinkedHashMap<>(16, 0.75f, true); // Every entry, eldest first
+    private final LinkedHashMap<String, Entry> hotOrder = new LinkedHashMap<>(16, 0.75f, true); // Entries kept in memory
+    private final Queue<Entry> pendingReads = new ConcurrentLinkedQueue<>(); // Hits not applied to the LRU order yet
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
+    private final long maxObjectSize; // Larger responses are not cached
+    private final AtomicLong tempFileCounter = new AtomicLong(); // Unique names for the files being written
+    private final CacheIndex index; // Persistent index, the cache is loaded from it on restarts
 
     public Cache (int cacheSize) {
-        this.cacheSize = cacheSize;
-        new File(cacheDirectory).mkdir(); // Create a directory for cached documents
-        clearCacheFolder(new File("cache")); // For cases such as program restarts, clear the cache directory
+        this(cacheSize, "cache");
     }
 
-    public boolean isUrlExistsInCache(String absoluteURL) { // Check if the absolute URL exists in the cache
-        return urlDocMapping.containsKey(absoluteURL);
+    public Cache (int cacheSize, String cacheDirectory) { // Instances on the same host need their own directories
+        this(cacheSize, DEFAULT_HOT_TIER_BYTES, DEFAULT_MAX_OBJECT_BYTES, cacheDirectory);
     }
 
-    public void addHtmlDocToCache(String absoluteURL, byte[] data) { // Add missed file to cache
+    // Files of the cache that its index does not know about are deleted from the directory, other files are left alone
+    public Cache (int cacheSize, long hotTierCapacity, long maxObjectSize, String cacheDirectory) {
+        this.cacheSize = cacheSize;
+        this.cacheDirectory = cacheDirectory;
+        this.hotTierCapacity = hotTierCapacity;
+        this.maxObjectSize = maxObjectSize;
+        int segmentCount = 1;
+        while (segmentCount * 2 <= Math.min(MAX_SEGMENTS, cacheSize)) { // Power of two, never more stripes than entries
+            segmentCount *= 2;
+        }
+        this.segments = new ReentrantLock[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new ReentrantLock();
+        }
+        this.segmentMask = segmentCount - 1;
+        new File(cacheDirectory).mkdirs(); // Create a directory for cached documents
+        this.index = new CacheIndex(Paths.get(cacheDirectory));
+        loadIndex(); // For cases such as program restarts, continue with the documents cached before
+    }
+
+    // Rebuild the cache from the persistent index. Entries whose file is missing or does not have the indexed size
+    // were torn by a crash and are dropped, files without an entry (e.g. partial responses) are deleted
+    private void loadIndex() {
+        Map<String, CacheIndex.Record> records;
         try {
-            String cacheFileName = generateCacheKey(absoluteURL); // Key of the cache is the absolute URL
-            Path cacheFilePath = Paths.get(cacheDirectory, cacheFileName); // Path of the file is cache + file name
-            Files.write(cacheFilePath, data); // Write the given data on the file
-            urlDocMapping.put(absoluteURL, cacheFilePath.toString()); // Add the file to the URL-File mapping
-            cacheListOrder.add(absoluteURL); // Add the newly cached file to the list from the end
-            if (cacheListOrder.size() > cacheSize) { // If the size of the cache exceeds the desired size...
-                String oldestURL = cacheListOrder.poll(); // Determine the oldest file (FIFO)
-                String oldestFilePath = urlDocMapping.remove(oldestURL); // Remove that file from the mapping
-                if (oldestFilePath != null) { // If that file is not null, delete that file
-                    Files.deleteIfExists(Paths.get(oldestFilePath));
+            records = index.load();
+        } catch (IOException e) {
+            Log.warn("Cache index cannot be read, starting with an empty cache");
+            records = Collections.emptyMap();
+        }
+        List<CacheIndex.Record> valid = new ArrayList<>();
+        for (CacheIndex.Record record : records.values()) {
+            Path path = Paths.get(cacheDirectory, record.getKey());
+            try {
+                if (record.getKey().equals(generateCacheKey(record.getUrl())) && Files.size(path) == record.getSize()) {
+                    valid.add(record);
                 }
+            } catch (IOException e) { // The file does not exist anymore
             }
-            System.out.println("Added to cache: " + absoluteURL);
+        }
+        // The least recently used documents do not fit if the cache is smaller than before
+        List<CacheIndex.Record> loaded = valid.subList(Math.max(0, valid.size() - cacheSize), valid.size());
+        Set<String> loadedFiles = new HashSet<>();
+        for (CacheIndex.Record record : loaded) {
+            Entry entry = new Entry(record.getUrl(), Paths.get(cacheDirectory, record.getKey()), record.getSize(), record.getMetadata());
+            urlDocMapping.put(entry.url, entry);
+            coldOrder.put(entry.url, entry); // Cold, documents are read into memory on their first hit
+            loadedFiles.add(record.getKey());
+        }
+        loadedFiles.add(CacheIndex.LOG_FILE_NAME);
+        deleteOrphanedFiles(new File(cacheDirectory), loadedFiles);
+        compactIndex(); // Drops the torn tail and the records of deleted files
+        Log.info("Loaded " + urlDocMapping.size() + " documents from the cache index");
+    }
+
+    private void compactIndex() {
+        try {
+            index.compact(() -> {
+                List<CacheIndex.Record> live = new ArrayList<>(urlDocMapping.size());
+                for (Entry entry : urlDocMapping.values()) {
+                    live.add(new CacheIndex.Record(entry.path.getFileName().toString(), entry.url, entry.size, entry.metadata));
+                }
+                return live;
+            });
         } catch (IOException e) {
-            System.out.println("URL and HTML document cannot be cached");
+            Log.warn("Cache index cannot be compacted: ", e.getMessage());
         }
     }
 
+    public boolean isUrlExistsInCache(String absoluteURL) { // Check if the absolute URL exists in the cache
+        return urlDocMapping.containsKey(absoluteURL);
+    }
+
+    public void addHtmlDocToCache(String absoluteURL, byte[] data) { // Add missed file to cache
+        storeHtmlDoc(absoluteURL, data);
+    }
+
     public byte[] getHtmlDocFromCache(String absoluteURL) { // Retrieve a document from cache
+        Entry entry = urlDocMapping.get(absoluteURL); // Get the cache entry with URL mapping, no lock is needed
+        if (entry == null) {
+            return null;
+        }
+        recordRead(entry);
+        ByteBuffer hotData = entry.hotData;
         try {
-            String cacheFilePath = urlDocMapping.get(absoluteURL); // Get the file name with URL mapping
-            if (cacheFilePath != null) { // Check if file is not null
-                return Files.readAllBytes(Paths.get(cacheFilePath)); // If so, return the content of the file
+            if (hotData == null) { // Cold tier, read the content of the file
+                try (FileChannel file = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+                    hotData = loadHotData(file);
+                }
+                promoteToHotTier(entry, hotData);
             }
-        } catch (IOException e) {
-            System.out.println("Error retrieving the HTML document from cache");
+            byte[] data = new byte[hotData.remaining()];
+            hotData.duplicate().get(data);
+            return data;
+        } catch (IOException e) { // The file may have been evicted in the meantime
+            Log.warn("Error retrieving the HTML document from cache");
         }
         return null;
     }
 
+    // Send a cached document to the channel without copying it to the heap: from memory for the hot tier,
+    // with FileChannel.transferTo for the cold tier. Returns false if the document is not in the cache anymore
+    public boolean sendHtmlDocFromCache(String absoluteURL, WritableByteChannel channel) throws IOException {
+        Entry entry = urlDocMapping.get(absoluteURL);
+        if (entry == null) {
+            return false;
+        }
+        recordRead(entry);
+        ByteBuffer hotData = entry.hotData;
+        if (hotData != null) {
+            ByteBuffer view = hotData.duplicate(); // Own position, the buffer is shared by every reader
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+            Metrics.BYTES_FROM_CACHE.add(hotData.remaining());
+            return true;
+        }
+        try (FileChannel file = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+            long position = 0;
+            long size = file.size();
+            while (position < size) {
+                position += file.transferTo(position, size - position, channel);
+            }
+            Metrics.BYTES_FROM_CACHE.add(size);
+            if (size <= hotTierCapacity / 4) { // Huge documents are served from disk only
+                promoteToHotTier(entry, loadHotData(file));
+            }
+        } catch (NoSuchFileException e) { // Evicted in the meantime, nothing has been sent yet
+            return false;
+        }
+        return true;
+    }
+
+    private void recordRead(Entry entry) { // Queue a hit for the LRU order, hits never wait for the policy lock
+        if (pendingReadCount.get() < MAX_PENDING_READS) {
+            pendingReads.add(entry);
+            pendingReadCount.incrementAndGet();
+        }
+        if (pendingReadCount.get() >= READ_DRAIN_THRESHOLD && policyLock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    private void drainReads() { // Apply the queued hits in their order, under the policy lock
+        Entry entry;
+        while ((entry = pendingReads.poll()) != null) {
+            pendingReadCount.decrementAndGet();
+            if (coldOrder.get(entry.url) == entry && entry.hotData != null) { // Marks it as the most recently used one
+                hotOrder.get(entry.url);
+            }
+        }
+    }
+
+    private static ByteBuffer loadHotData(FileChannel file) throws IOException { // Map or read a cold document off-heap
+        if (file.size() >= MAPPED_THRESHOLD) {
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect((int) file.size());
+        while (data.hasRemaining() && file.read(data, data.position()) != -1) {
+        }
+        data.flip();
+        return data.asReadOnlyBuffer();
+    }
+
     private String generateCacheKey(String uri) { // Generating the cache key for file naming
         try {
             MessageDigest digest = MessageDigest.getInstance("MD5"); // Message digest is used for creating hash values
@@ -65,39 +233,309 @@ public class Cache {
         }
     }
 
-    private static void clearCacheFolder(File folder) { // Clearing the cache folder for reruns
-        if (folder.exists() && folder.isDirectory()) { // If folder exists and the given path is a directory...
-            for (File file : folder.listFiles()) { // For each file under the folder...
+    // Cache files the index does not know about. Only names that the cache creates are deleted, so a directory
+    // given by mistake, or shared with other files, loses nothing else
+    private static void deleteOrphanedFiles(File folder, Set<String> keptFiles) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) { // For each file under the folder...
+            if (!keptFiles.contains(file.getName()) && file.isFile() && CACHE_FILE_NAME.matcher(file.getName()).matches()) {
                 file.delete(); // Delete that file
             }
         }
     }
 
     public void updateCacheFile(String absoluteURL, byte[] data) { // Update the modified cache file
+        storeHtmlDoc(absoluteURL, data); // The new file replaces the old one when it is published
+    }
+
+    public int getEntryCount() {
+        return urlDocMapping.size();
+    }
+
+    public long getHotTierBytes() { // Document bytes currently kept in memory
+        return hotTierBytes.get();
+    }
+
+    public CacheMetadata getCacheMetadata(String absoluteURL) { // Freshness information of a cached document, or null
+        Entry entry = urlDocMapping.get(absoluteURL); // The headers were indexed when the document was stored
+        return (entry != null) ? entry.metadata : null;
+    }
+
+    // The origin answered a conditional request with 304 Not Modified: keep the body, refresh its freshness
+    public boolean refreshCacheEntry(String absoluteURL, ByteBuffer notModifiedResponse) {
+        Entry entry = urlDocMapping.get(absoluteURL);
+        if (entry == null) {
+            return false;
+        }
+        ReentrantLock lock = segmentFor(absoluteURL);
+        lock.lock();
+        try { // Under the lock, so that the index records of the URL stay in order
+            if (urlDocMapping.get(absoluteURL) != entry) { // Replaced or evicted in the meantime
+                return false;
+            }
+            entry.metadata = entry.metadata.refreshedBy(notModifiedResponse, System.currentTimeMillis());
+            index.recordPut(entry.path.getFileName().toString(), entry.url, entry.size, entry.metadata);
+        } finally {
+            lock.unlock();
+        }
+        Log.debug("Revalidated cache: ", absoluteURL);
+        return true;
+    }
+
+    private boolean storeHtmlDoc(String absoluteURL, byte[] data) { // Write the document to disk and publish its entry
         try {
-            String cacheFileName = generateCacheKey(absoluteURL); // Retrieve the cache file name with URL mapping
-            Path cacheFilePath = Paths.get(cacheDirectory, cacheFileName); // Find the cache file
-            Files.write(cacheFilePath, data); // Write the data given inside that file
-            cacheListOrder.remove(absoluteURL); // Remove the file from the list
-            cacheListOrder.add(absoluteURL); // Re-add the file, so the file's entry is updated
-            System.out.println("File is modified, updated cache: " + absoluteURL);
+            CacheWriter writer = openCacheWriter(absoluteURL, name -> null); // No request headers
+            try {
+                writer.write(data, 0, data.length);
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+            return writer.commit();
         } catch (IOException e) {
-            System.err.println("Error updating cache: " + e.getMessage());
+            Log.warn("URL and HTML document cannot be cached");
+            return false;
         }
     }
 
-    public boolean isCacheFileModified(String absoluteURL) { // Check if the file is modified
-        byte[] cachedData = getHtmlDocFromCache(absoluteURL); // Retrieve the file content with the given URL
-        String cachedDataString = new String(cachedData); // Convert the byte array into String format
-        String[] headerLines = cachedDataString.split("\r\n|\n|\r");
-        for (String line : headerLines) { // Split the content, and for each line...
-            if (line.startsWith("Content-Length:")) { // Check if that line is the Content-Length header
-                int contentLength = Integer.parseInt(line.substring(16).trim()); // Retrieve the length
-                System.out.println("Content-Length: " + contentLength);
-                return contentLength % 2 == 0; // If the length is even, then the file is modified
+    // Start streaming a response into the cache. Chunks are appended to a temporary file as they arrive, and
+    // the entry is only published by commit, so a partial or failed response is never served
+    // The request headers are looked up on commit for responses that Vary on them, they must stay valid until then
+    public CacheWriter openCacheWriter(String absoluteURL, Function<String, String> requestHeaders) throws IOException {
+        String cacheFileName = generateCacheKey(absoluteURL); // Key of the cache is the absolute URL
+        Path tempFilePath = Paths.get(cacheDirectory, cacheFileName + "." + tempFileCounter.incrementAndGet() + ".part");
+        return new CacheWriter(absoluteURL, requestHeaders, Paths.get(cacheDirectory, cacheFileName), tempFilePath);
+    }
+
+    private void promoteToHotTier(Entry entry, ByteBuffer data) { // Keep a document read from disk in memory
+        List<Entry> evicted;
+        policyLock.lock();
+        try {
+            drainReads();
+            if (coldOrder.get(entry.url) == entry) { // Only promote if the entry was not replaced or evicted
+                addHot(entry, data);
             }
+            evicted = evictIfNeeded(entry.url);
+        } finally {
+            policyLock.unlock();
+        }
+        deleteEvicted(evicted);
+    }
+
+    // Enforce both tier limits in the global LRU order, under the policy lock. Documents dropped from memory are
+    // done with, the evicted entries are returned and their files deleted by deleteEvicted once the lock is released
+    private List<Entry> evictIfNeeded(String protectedURL) {
+        List<Entry> evicted = new ArrayList<>();
+        Iterator<Entry> iterator = coldOrder.values().iterator();
+        while (coldOrder.size() > cacheSize && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest.url.equals(protectedURL)) { // Never evict the document that has just been added
+                continue;
+            }
+            iterator.remove();
+            removeHot(eldest);
+            evicted.add(eldest);
+        }
+        iterator = hotOrder.values().iterator();
+        while (hotTierBytes.get() > hotTierCapacity && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest.url.equals(protectedURL)) {
+                continue;
+            }
+            iterator.remove();
+            ByteBuffer data = eldest.hotData;
+            eldest.hotData = null;
+            if (data != null) {
+                hotTierBytes.addAndGet(-data.remaining());
+                Metrics.HOT_EVICTIONS.increment();
+            }
+        }
+        return evicted;
+    }
+
+    private void deleteEvicted(List<Entry> evicted) { // Under the URL's lock so that a newer file of the URL is kept
+        for (Entry entry : evicted) {
+            ReentrantLock lock = segmentFor(entry.url);
+            lock.lock();
+            try {
+                if (!urlDocMapping.remove(entry.url, entry)) { // Replaced in the meantime, the file is the new one
+                    continue;
+                }
+                Metrics.COLD_EVICTIONS.increment();
+                index.recordRemove(entry.path.getFileName().toString()); // Before the file is gone
+                try {
+                    Files.deleteIfExists(entry.path);
+                } catch (IOException e) {
+                    Log.warn("Evicted cache file cannot be deleted: ", entry.path);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void addHot(Entry entry, ByteBuffer data) { // Under the policy lock
+        if (data == null || data.remaining() > hotTierCapacity / 4 || entry.hotData != null) { // Huge documents stay on disk
+            return;
+        }
+        entry.hotData = data;
+        hotOrder.put(entry.url, entry);
+        hotTierBytes.addAndGet(data.remaining());
+    }
+
+    private void removeHot(Entry entry) { // Under the policy lock
+        ByteBuffer data = entry.hotData;
+        if (data != null) {
+            entry.hotData = null;
+            hotOrder.remove(entry.url, entry);
+            hotTierBytes.addAndGet(-data.remaining());
+        }
+    }
+
+    private ReentrantLock segmentFor(String absoluteURL) {
+        return segments[segmentIndex(absoluteURL)];
+    }
+
+    private int segmentIndex(String absoluteURL) {
+        int hash = absoluteURL.hashCode();
+        return (hash ^ (hash >>> 16)) & segmentMask; // Spread the higher bits as HashMap does
+    }
+
+    public final class CacheWriter { // A response being streamed into the cache, see openCacheWriter
+        private final String absoluteURL;
+        private final Function<String, String> requestHeaders;
+        private final Path cacheFilePath;
+        private final Path tempFilePath;
+        private final FileChannel channel;
+        private long size;
+        private boolean closed;
+
+        private CacheWriter(String absoluteURL, Function<String, String> requestHeaders, Path cacheFilePath, Path tempFilePath) throws IOException {
+            this.absoluteURL = absoluteURL;
+            this.requestHeaders = requestHeaders;
+            this.cacheFilePath = cacheFilePath;
+            this.tempFilePath = tempFilePath;
+            this.channel = FileChannel.open(tempFilePath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        public void write(byte[] buffer, int offset, int length) throws IOException { // Append a chunk of the response
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, offset, length);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            size += length;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public boolean isOversized() { // Whether the response is too large to be cached
+            return size > maxObjectSize;
+        }
+
+        public FileChannel openReader() throws IOException { // Positional reads of the bytes written so far
+            return FileChannel.open(tempFilePath, StandardOpenOption.READ);
+        }
+
+        public boolean commit() { // Publish the complete response, the temporary file becomes the cache file
+            if (isOversized()) {
+                Log.debug("Response is too large to be cached: ", absoluteURL);
+                abort();
+                return false;
+            }
+            try {
+                closed = true;
+                channel.close();
+                ByteBuffer hotData = null;
+                CacheMetadata metadata;
+                try (FileChannel file = FileChannel.open(tempFilePath, StandardOpenOption.READ)) {
+                    if (size <= hotTierCapacity / 4) { // Huge documents are served from disk only
+                        hotData = loadHotData(file);
+                        metadata = CacheMetadata.parse(hotData, System.currentTimeMillis(), requestHeaders);
+                    } else {
+                        ByteBuffer head = ByteBuffer.allocate((int) Math.min(size, MAX_HEADER_BYTES));
+                        file.read(head, 0);
+                        head.flip();
+                        metadata = CacheMetadata.parse(head, System.currentTimeMillis(), requestHeaders);
+                    }
+                }
+                if (!metadata.isStorable()) { // E.g. Cache-Control: no-store or private
+                    Log.debug("Response is not cacheable: ", absoluteURL);
+                    abort();
+                    return false;
+                }
+                publish(this, hotData, metadata);
+                Log.debug("Added to cache: ", absoluteURL);
+                return true;
+            } catch (IOException e) {
+                Log.warn("URL and HTML document cannot be cached");
+                abort();
+                return false;
+            }
+        }
+
+        public void abort() { // Discard a partial, failed or oversized response
+            try {
+                if (!closed) {
+                    closed = true;
+                    channel.close();
+                }
+                Files.deleteIfExists(tempFilePath);
+            } catch (IOException e) {
+                Log.warn("Temporary cache file cannot be deleted: ", tempFilePath);
+            }
+        }
+    }
+
+    private void publish(CacheWriter writer, ByteBuffer hotData, CacheMetadata metadata) throws IOException {
+        ReentrantLock lock = segmentFor(writer.absoluteURL);
+        Entry entry = new Entry(writer.absoluteURL, writer.cacheFilePath, writer.size, metadata);
+        Entry previous;
+        lock.lock();
+        try { // Renaming under the lock so that an eviction cannot delete a freshly published file
+            Files.move(writer.tempFilePath, writer.cacheFilePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            previous = urlDocMapping.put(writer.absoluteURL, entry); // Add the file to the URL-File mapping
+            index.recordPut(writer.cacheFilePath.getFileName().toString(), entry.url, entry.size, metadata);
+        } finally {
+            lock.unlock();
+        }
+        List<Entry> evicted;
+        policyLock.lock();
+        try {
+            drainReads();
+            if (previous != null) {
+                removeHot(previous);
+            }
+            if (urlDocMapping.get(writer.absoluteURL) == entry) { // Otherwise a newer response is being published
+                coldOrder.put(writer.absoluteURL, entry);
+                addHot(entry, hotData);
+            }
+            evicted = evictIfNeeded(writer.absoluteURL);
+        } finally {
+            policyLock.unlock();
+        }
+        deleteEvicted(evicted);
+        if (index.needsCompaction(urlDocMapping.size())) {
+            compactIndex();
+        }
+    }
+
+    private static final class Entry { // A cached document, always on disk and optionally in memory
+        private final String url;
+        private final Path path;
+        private final long size; // Size of the stored response, headers included
+        private volatile CacheMetadata metadata; // Replaced when the document is revalidated
+        private volatile ByteBuffer hotData; // Read-only content if the document is in the hot tier, null otherwise
+
+        private Entry(String url, Path path, long size, CacheMetadata metadata) {
+            this.url = url;
+            this.path = path;
+            this.size = size;
+            this.metadata = metadata;
         }
-        System.out.println("Content-Length header not found");
-        return true;
     }
-}
\ No newline at end of file
+}
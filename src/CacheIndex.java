@@ -0,0 +1,204 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// Persistent index of the cache directory, so that the proxy restarts warm. It is an append-only log of put and
+// remove records keyed by the cache file names. Every record is framed with its length and CRC, a torn write at
+// the end of the log is detected and dropped. The log is rewritten with only the live entries when it grows
+public class CacheIndex {
+    public static final String LOG_FILE_NAME = "index.log";
+    private static final int MAGIC = 0x48504349; // "HPCI"
+    private static final int VERSION = 2; // 2: stored freshness headers in the metadata
+    private static final int MIN_COMPACTION_RECORDS = 1024; // Never compact a small log
+    private static final byte PUT = 'P';
+    private static final byte REMOVE = 'R';
+
+    private final Path logPath;
+    private final Path compactionPath;
+    private FileChannel log; // Append channel, null until the first compaction, guarded by this
+    private long appendedRecords; // Records written since the last compaction, guarded by this
+
+    public CacheIndex(Path directory) {
+        this.logPath = directory.resolve(LOG_FILE_NAME);
+        this.compactionPath = directory.resolve(LOG_FILE_NAME + ".tmp");
+    }
+
+    // Replay the log. Returns the live records by file name, least recently written first. Reading stops at the
+    // first torn or corrupt record, the records before it are kept
+    public synchronized LinkedHashMap<String, Record> load() throws IOException {
+        LinkedHashMap<String, Record> records = new LinkedHashMap<>();
+        if (!Files.exists(logPath)) {
+            return records;
+        }
+        try (FileChannel file = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            if (file.size() < 8) {
+                return records;
+            }
+            MappedByteBuffer data = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()); // Read once, sequentially
+            if (data.getInt() != MAGIC || data.getInt() != VERSION) { // Not an index of this version, start cold
+                Log.warn("Cache index has an unknown format, it is ignored");
+                return records;
+            }
+            CRC32 crc = new CRC32();
+            while (data.remaining() >= 8) {
+                int length = data.getInt();
+                int checksum = data.getInt();
+                if (length <= 0 || length > data.remaining()) { // Torn write, the record was not completely written
+                    break;
+                }
+                byte[] payload = new byte[length];
+                data.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                try {
+                    apply(payload, records);
+                } catch (IOException e) {
+                    break;
+                }
+            }
+        }
+        return records;
+    }
+
+    private static void apply(byte[] payload, LinkedHashMap<String, Record> records) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        String key = in.readUTF();
+        records.remove(key); // A put moves the record to the end, like a recently used entry
+        if (type == PUT) {
+            String url = in.readUTF();
+            long size = in.readLong();
+            records.put(key, new Record(key, url, size, CacheMetadata.readFrom(in)));
+        } else if (type != REMOVE) {
+            throw new IOException("Unknown cache index record: " + type);
+        }
+    }
+
+    public void recordPut(String key, String url, long size, CacheMetadata metadata) { // A document was published
+        try {
+            append(putPayload(key, url, size, metadata));
+        } catch (IOException e) {
+            Log.warn("Cache index cannot be written: ", e.getMessage());
+        }
+    }
+
+    public void recordRemove(String key) { // A document was evicted
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream(40);
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(REMOVE);
+            out.writeUTF(key);
+            append(payload.toByteArray());
+        } catch (IOException e) {
+            Log.warn("Cache index cannot be written: ", e.getMessage());
+        }
+    }
+
+    // Records are appended without fsync: after a crash the lost tail only leaves orphaned files behind, and those
+    // are deleted at startup
+    private synchronized void append(byte[] payload) throws IOException {
+        if (log == null) {
+            return;
+        }
+        ByteBuffer framed = frame(payload);
+        while (framed.hasRemaining()) {
+            log.write(framed);
+        }
+        appendedRecords++;
+    }
+
+    public synchronized boolean needsCompaction(int liveEntries) { // Whether the log is mostly overwritten records
+        return log != null && appendedRecords > Math.max(MIN_COMPACTION_RECORDS, 2L * liveEntries);
+    }
+
+    // Rewrite the log with the live entries only, the new log atomically replaces the old one. The entries are
+    // listed under the lock, so that no record appended in the meantime is lost
+    public synchronized void compact(Supplier<List<Record>> liveRecords) throws IOException {
+        try (FileChannel compacted = FileChannel.open(compactionPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            compacted.write(header);
+            for (Record record : liveRecords.get()) {
+                ByteBuffer framed = frame(putPayload(record.key, record.url, record.size, record.metadata));
+                while (framed.hasRemaining()) {
+                    compacted.write(framed);
+                }
+            }
+            compacted.force(true); // The new log must be complete before it replaces the old one
+        }
+        if (log != null) {
+            log.close();
+            log = null; // Nothing is appended if the new log cannot be opened
+        }
+        Files.move(compactionPath, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log = FileChannel.open(logPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        appendedRecords = 0;
+    }
+
+    private static byte[] putPayload(String key, String url, long size, CacheMetadata metadata) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(PUT);
+        out.writeUTF(key);
+        out.writeUTF(url);
+        out.writeLong(size);
+        metadata.writeTo(out);
+        return payload.toByteArray();
+    }
+
+    private static ByteBuffer frame(byte[] payload) { // Length, CRC32 of the payload, payload
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        ByteBuffer framed = ByteBuffer.allocate(8 + payload.length);
+        framed.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        framed.flip();
+        return framed;
+    }
+
+    public static final class Record { // A live cache entry as stored in the log
+        private final String key; // Name of the cache file
+        private final String url;
+        private final long size;
+        private final CacheMetadata metadata;
+
+        public Record(String key, String url, long size, CacheMetadata metadata) {
+            this.key = key;
+            this.url = url;
+            this.size = size;
+            this.metadata = metadata;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public CacheMetadata getMetadata() {
+            return metadata;
+        }
+    }
+}
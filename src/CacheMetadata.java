@@ -0,0 +1,378 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+// Freshness and validation information of a cached response (RFC 9111), indexed from its headers when it
+// is stored so that hits never parse the cached document again
+public final class CacheMetadata {
+    public static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    private static final long MAX_HEURISTIC_LIFETIME_MILLIS = 24L * 60 * 60 * 1000; // Heuristic freshness is capped at a day
+    private static final int[] HEURISTICALLY_CACHEABLE = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+    // Headers that freshness and validation are computed from, they are kept to be merged with those of a 304
+    private static final String[] FRESHNESS_HEADERS = {"Cache-Control", "Date", "Age", "Expires", "Last-Modified", "ETag"};
+
+    private final int statusCode;
+    private final int contentLength; // Value of the Content-Length header, -1 if there is none
+    private final long responseTimeMillis; // When the response was received, or last revalidated
+    private final long initialAgeMillis; // Age of the response when it was received, from Age and Date
+    private final long freshnessLifetimeMillis;
+    private final boolean noStore;
+    private final boolean noCache; // Has to be revalidated before every use
+    private final String etag;
+    private final String lastModified;
+    private final String[] varyNames; // Request headers selecting this variant, lower case
+    private final String[] varyValues; // Values of those headers in the request that was stored, null if absent
+    private final boolean varyAll;
+    private final String[] headerLines; // Stored lines of the FRESHNESS_HEADERS, as "Name: value"
+
+    private CacheMetadata(int statusCode, int contentLength, long responseTimeMillis, long initialAgeMillis,
+                          long freshnessLifetimeMillis, boolean noStore, boolean noCache, String etag,
+                          String lastModified, String[] varyNames, String[] varyValues, boolean varyAll,
+                          String[] headerLines) {
+        this.statusCode = statusCode;
+        this.contentLength = contentLength;
+        this.responseTimeMillis = responseTimeMillis;
+        this.initialAgeMillis = initialAgeMillis;
+        this.freshnessLifetimeMillis = freshnessLifetimeMillis;
+        this.noStore = noStore;
+        this.noCache = noCache;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.varyNames = varyNames;
+        this.varyValues = varyValues;
+        this.varyAll = varyAll;
+        this.headerLines = headerLines;
+    }
+
+    // Parse the status line and headers at the start of a response. The request headers, looked up by name, are
+    // kept for Vary
+    public static CacheMetadata parse(ByteBuffer response, long responseTimeMillis, Function<String, String> requestHeaders) {
+        List<String> lines = readHeaderLines(response);
+        int statusCode = 0;
+        if (!lines.isEmpty()) {
+            String[] statusParts = lines.get(0).split(" ", 3);
+            try {
+                statusCode = (statusParts.length >= 2) ? Integer.parseInt(statusParts[1]) : 0;
+            } catch (NumberFormatException e) {
+                statusCode = 0;
+            }
+        }
+        Headers headers = new Headers(lines.subList(Math.min(1, lines.size()), lines.size()));
+        List<String> varyNames = new ArrayList<>();
+        boolean varyAll = false;
+        for (String vary : headers.values("Vary")) {
+            for (String name : vary.split(",")) {
+                name = name.trim().toLowerCase(Locale.ROOT);
+                if (name.equals("*")) {
+                    varyAll = true;
+                } else if (!name.isEmpty()) {
+                    varyNames.add(name);
+                }
+            }
+        }
+        String[] varyValues = new String[varyNames.size()];
+        for (int i = 0; i < varyValues.length; i++) {
+            varyValues[i] = requestHeaders.apply(varyNames.get(i));
+        }
+        int contentLength = -1;
+        try {
+            String value = headers.first("Content-Length");
+            contentLength = (value != null) ? Integer.parseInt(value) : -1;
+        } catch (NumberFormatException e) {
+            contentLength = -1;
+        }
+        return build(statusCode, contentLength, headers, responseTimeMillis,
+                varyNames.toArray(new String[0]), varyValues, varyAll);
+    }
+
+    private static CacheMetadata build(int statusCode, int contentLength, Headers headers, long responseTimeMillis,
+                                       String[] varyNames, String[] varyValues, boolean varyAll) {
+        boolean noStore = false;
+        boolean noCache = false;
+        long maxAgeSeconds = -1;
+        long sharedMaxAgeSeconds = -1;
+        for (String cacheControl : headers.values("Cache-Control")) {
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.ROOT);
+                if (directive.equals("no-store") || directive.equals("private")) { // A shared cache must not store private responses
+                    noStore = true;
+                } else if (directive.equals("no-cache") || directive.startsWith("no-cache=")) {
+                    noCache = true;
+                } else if (directive.startsWith("s-maxage=")) {
+                    sharedMaxAgeSeconds = parseSeconds(directive.substring(9));
+                } else if (directive.startsWith("max-age=")) {
+                    maxAgeSeconds = parseSeconds(directive.substring(8));
+                }
+            }
+        }
+        long dateMillis = parseDate(headers.first("Date"), responseTimeMillis);
+        long ageMillis = parseSeconds(headers.first("Age")) * 1000;
+        long initialAgeMillis = Math.max(Math.max(0, responseTimeMillis - dateMillis), Math.max(0, ageMillis));
+
+        long lifetimeMillis;
+        if (sharedMaxAgeSeconds >= 0) { // A shared cache prefers s-maxage, then max-age, then Expires
+            lifetimeMillis = sharedMaxAgeSeconds * 1000;
+        } else if (maxAgeSeconds >= 0) {
+            lifetimeMillis = maxAgeSeconds * 1000;
+        } else if (headers.first("Expires") != null) {
+            lifetimeMillis = Math.max(0, parseDate(headers.first("Expires"), dateMillis) - dateMillis);
+        } else if (headers.first("Last-Modified") != null && isHeuristicallyCacheable(statusCode)) {
+            // Heuristic freshness: a tenth of the time since the document was last modified
+            long sinceModified = dateMillis - parseDate(headers.first("Last-Modified"), dateMillis);
+            lifetimeMillis = Math.min(MAX_HEURISTIC_LIFETIME_MILLIS, Math.max(0, sinceModified / 10));
+        } else {
+            lifetimeMillis = 0; // Stored, but revalidated before every use
+        }
+        List<String> headerLines = new ArrayList<>();
+        for (String line : headers.lines) {
+            if (isFreshnessHeader(line)) {
+                headerLines.add(line);
+            }
+        }
+        return new CacheMetadata(statusCode, contentLength, responseTimeMillis, initialAgeMillis, lifetimeMillis,
+                noStore, noCache, headers.first("ETag"), headers.first("Last-Modified"), varyNames, varyValues, varyAll,
+                headerLines.toArray(new String[0]));
+    }
+
+    // Metadata after a 304 Not Modified: the stored body stays, the headers of the 304 replace the stored ones of
+    // the same name and freshness is computed from the merged headers (RFC 9111, 4.3.4). Date and Age describe the
+    // 304 itself, the stored ones are never kept
+    public CacheMetadata refreshedBy(ByteBuffer notModifiedResponse, long responseTimeMillis) {
+        List<String> lines = readHeaderLines(notModifiedResponse);
+        Headers update = new Headers(lines.subList(Math.min(1, lines.size()), lines.size()));
+        List<String> merged = new ArrayList<>();
+        for (String line : headerLines) {
+            String name = line.substring(0, line.indexOf(':'));
+            if (update.values(name).isEmpty() && !name.equalsIgnoreCase("Date") && !name.equalsIgnoreCase("Age")) {
+                merged.add(line);
+            }
+        }
+        merged.addAll(update.lines);
+        return build(statusCode, contentLength, new Headers(merged), responseTimeMillis, varyNames, varyValues, varyAll);
+    }
+
+    private static boolean isFreshnessHeader(String line) {
+        int colonIndex = line.indexOf(':');
+        for (String name : FRESHNESS_HEADERS) {
+            if (colonIndex == name.length() && line.regionMatches(true, 0, name, 0, colonIndex)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean isStorable() { // Whether a shared cache may keep the response
+        return !noStore && !varyAll && isHeuristicallyCacheable(statusCode);
+    }
+
+    public boolean isFresh(long nowMillis) { // Whether the response can be served without contacting the origin
+        long currentAge = initialAgeMillis + (nowMillis - responseTimeMillis);
+        return !noCache && currentAge < freshnessLifetimeMillis;
+    }
+
+    public boolean hasValidators() { // Whether a conditional request can revalidate the response
+        return etag != null || lastModified != null;
+    }
+
+    public boolean matchesVariant(Function<String, String> requestHeaders) { // Vary: the selecting headers must be the same
+        if (varyAll) {
+            return false;
+        }
+        for (int i = 0; i < varyNames.length; i++) {
+            String value = requestHeaders.apply(varyNames[i]);
+            if ((value == null) ? varyValues[i] != null : !value.equals(varyValues[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String conditionalHeaders() { // Headers of the conditional request revalidating the response
+        StringBuilder conditional = new StringBuilder();
+        if (etag != null) {
+            conditional.append("If-None-Match: ").append(etag).append("\r\n");
+        }
+        if (lastModified != null) {
+            conditional.append("If-Modified-Since: ").append(lastModified).append("\r\n");
+        }
+        return conditional.toString();
+    }
+
+    public void writeTo(DataOutput out) throws IOException { // Serialized form kept in the persistent cache index
+        out.writeInt(statusCode);
+        out.writeInt(contentLength);
+        out.writeLong(responseTimeMillis);
+        out.writeLong(initialAgeMillis);
+        out.writeLong(freshnessLifetimeMillis);
+        out.writeBoolean(noStore);
+        out.writeBoolean(noCache);
+        writeNullable(out, etag);
+        writeNullable(out, lastModified);
+        out.writeBoolean(varyAll);
+        out.writeInt(varyNames.length);
+        for (int i = 0; i < varyNames.length; i++) {
+            out.writeUTF(varyNames[i]);
+            writeNullable(out, varyValues[i]);
+        }
+        out.writeInt(headerLines.length);
+        for (String line : headerLines) {
+            out.writeUTF(line);
+        }
+    }
+
+    public static CacheMetadata readFrom(DataInput in) throws IOException { // Inverse of writeTo
+        int statusCode = in.readInt();
+        int contentLength = in.readInt();
+        long responseTimeMillis = in.readLong();
+        long initialAgeMillis = in.readLong();
+        long freshnessLifetimeMillis = in.readLong();
+        boolean noStore = in.readBoolean();
+        boolean noCache = in.readBoolean();
+        String etag = readNullable(in);
+        String lastModified = readNullable(in);
+        boolean varyAll = in.readBoolean();
+        int varyCount = in.readInt();
+        if (varyCount < 0) {
+            throw new IOException("Invalid number of Vary headers: " + varyCount);
+        }
+        String[] varyNames = new String[varyCount];
+        String[] varyValues = new String[varyCount];
+        for (int i = 0; i < varyCount; i++) {
+            varyNames[i] = in.readUTF();
+            varyValues[i] = readNullable(in);
+        }
+        int headerCount = in.readInt();
+        if (headerCount < 0) {
+            throw new IOException("Invalid number of stored headers: " + headerCount);
+        }
+        String[] headerLines = new String[headerCount];
+        for (int i = 0; i < headerCount; i++) {
+            headerLines[i] = in.readUTF();
+        }
+        return new CacheMetadata(statusCode, contentLength, responseTimeMillis, initialAgeMillis, freshnessLifetimeMillis,
+                noStore, noCache, etag, lastModified, varyNames, varyValues, varyAll, headerLines);
+    }
+
+    private static void writeNullable(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    public String getETag() {
+        return etag;
+    }
+
+    private static String headerValue(List<String> headers, String name) { // Value of the first header with the name
+        for (String header : headers) {
+            int colonIndex = header.indexOf(':');
+            if (colonIndex == name.length() && header.regionMatches(true, 0, name, 0, colonIndex)) {
+                return header.substring(colonIndex + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    public static int statusCodeOf(ByteBuffer response) { // Status code of a response, 0 if it cannot be parsed
+        List<String> lines = readHeaderLines(response);
+        String[] statusParts = lines.isEmpty() ? new String[0] : lines.get(0).split(" ", 3);
+        try {
+            return (statusParts.length >= 2) ? Integer.parseInt(statusParts[1]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static boolean isHeuristicallyCacheable(int statusCode) {
+        for (int cacheable : HEURISTICALLY_CACHEABLE) {
+            if (statusCode == cacheable) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim().replace("\"", ""));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseDate(String value, long defaultMillis) {
+        if (value == null) {
+            return defaultMillis;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) { // Invalid dates, e.g. "Expires: 0", are in the past
+            return 0;
+        }
+    }
+
+    private static List<String> readHeaderLines(ByteBuffer response) { // Status line and headers, until the empty line
+        List<String> lines = new ArrayList<>();
+        int lineStart = response.position();
+        for (int i = lineStart; i < response.limit(); i++) {
+            if (response.get(i) != '\n') {
+                continue;
+            }
+            int lineEnd = (i > lineStart && response.get(i - 1) == '\r') ? i - 1 : i;
+            if (lineEnd == lineStart) { // Empty line, end of the headers
+                break;
+            }
+            byte[] line = new byte[lineEnd - lineStart];
+            response.get(lineStart, line);
+            lines.add(new String(line, StandardCharsets.ISO_8859_1));
+            lineStart = i + 1;
+        }
+        return lines;
+    }
+
+    private static final class Headers { // Response header lines without the status line, looked up by case-insensitive name
+        private final List<String> lines;
+
+        private Headers(List<String> lines) {
+            this.lines = lines;
+        }
+
+        private String first(String name) {
+            return headerValue(lines, name);
+        }
+
+        private List<String> values(String name) {
+            List<String> values = new ArrayList<>();
+            for (String line : lines) {
+                int colonIndex = line.indexOf(':');
+                if (colonIndex == name.length() && line.regionMatches(true, 0, name, 0, colonIndex)) {
+                    values.add(line.substring(colonIndex + 1).trim());
+                }
+            }
+            return values;
+        }
+    }
+}
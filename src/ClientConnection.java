@@ -0,0 +1,70 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ClientConnection { // An accepted client connection that may serve many requests
+    public static final int IDLE_TIMEOUT_MILLIS = 15000; // Idle persistent connections are closed after this time
+    public static final int MAX_REQUESTS = 100; // Persistent connections are closed after this many requests
+
+    private final SocketChannel channel;
+    private HttpRequestParser request; // Created for the first request, engines may read request heads into it
+    private Object attachment; // Per connection state of the handler, e.g. its buffered reader
+    private int requestCount;
+    private volatile long lastActiveMillis = System.currentTimeMillis();
+    private final AtomicBoolean closed = new AtomicBoolean(); // Engines may close a connection more than once
+
+    public ClientConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.socket().setSoTimeout(IDLE_TIMEOUT_MILLIS); // Blocking reads for the next request time out as well
+        channel.socket().setTcpNoDelay(true); // The last part of a relayed response must not wait for the ACK of the previous one
+        Metrics.ACTIVE_CONNECTIONS.increment();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    public HttpRequestParser getRequest() { // Parser of the requests of this connection, kept between them
+        if (request == null) {
+            request = new HttpRequestParser();
+        }
+        return request;
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public boolean startRequest() { // Count a new request. Returns false if it has to be the last one
+        lastActiveMillis = System.currentTimeMillis();
+        return ++requestCount < MAX_REQUESTS;
+    }
+
+    public long getLastActiveMillis() {
+        return lastActiveMillis;
+    }
+
+    void touch() {
+        lastActiveMillis = System.currentTimeMillis();
+    }
+
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            Metrics.ACTIVE_CONNECTIONS.decrement();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Socket cannot be closed.");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public abstract class ConnectionEngine { // Accepts client connections and dispatches them to a handler
+    public static final int DEFAULT_MAX_CONNECTIONS = 10000; // Connections above this limit wait in the accept backlog
+    public static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 16; // Of the selector engine
+    public static final int BACKLOG = 1024; // Accept queue length of the listening socket
+
+    protected final int maxConnections;
+
+    protected ConnectionEngine(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    // Accept connections from the given server channel until it is closed, this call blocks
+    public abstract void serve(ServerSocketChannel serverChannel, ConnectionHandler handler) throws IOException;
+
+    // Select the engine stated at startup as name[:max connections[:worker threads]], e.g. selector:20000:128.
+    // The worker threads only apply to the selector engine, the others run one thread per connection
+    public static ConnectionEngine create(String spec) {
+        String[] parts = spec.split(":", -1);
+        String name = parts[0];
+        if (parts.length > 3) {
+            throw new IllegalArgumentException("Invalid connection engine: " + spec + " (name[:max connections[:worker threads]])");
+        }
+        int maxConnections = (parts.length >= 2) ? parsePositive(parts[1], "maximum connections") : DEFAULT_MAX_CONNECTIONS;
+        int workerThreads = (parts.length >= 3) ? parsePositive(parts[2], "worker threads") : DEFAULT_WORKER_THREADS;
+        if (parts.length >= 3 && !name.equals("selector")) {
+            Log.warn("Worker threads only apply to the selector engine, ignored for ", name);
+        }
+        switch (name) {
+            case "selector":
+                return new SelectorConnectionEngine(maxConnections, workerThreads);
+            case "virtual":
+                ExecutorService virtualThreads = newVirtualThreadExecutor();
+                if (virtualThreads != null) {
+                    return new ThreadConnectionEngine(maxConnections, virtualThreads);
+                }
+                Log.warn("Virtual threads are not supported by this JVM. Platform threads will be used.");
+                return new ThreadConnectionEngine(maxConnections, Executors.newCachedThreadPool());
+            case "thread":
+                return new ThreadConnectionEngine(maxConnections, Executors.newCachedThreadPool());
+            default:
+                throw new IllegalArgumentException("Unknown connection engine: " + name + " (selector, virtual or thread)");
+        }
+    }
+
+    private static int parsePositive(String value, String description) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) { // Reported below, as a value that is not positive
+        }
+        throw new IllegalArgumentException("Invalid number of " + description + ": " + value);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() { // Looked up reflectively, virtual threads need Java 21
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    protected static boolean handleSafely(ConnectionHandler handler, ClientConnection connection) {
+        try {
+            return handler.handle(connection);
+        } catch (RuntimeException e) { // A failing session must not take the engine down
+            Log.error("Session failed: ", e);
+            return false;
+        }
+    }
+}
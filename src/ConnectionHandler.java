@@ -0,0 +1,14 @@
+// Serves an accepted client connection, the socket is in blocking mode. Engines may already have read the
+// request head into the parser of the connection, see ClientConnection.getRequest
+public interface ConnectionHandler {
+    // Serve the next request and every pipelined request already received after it.
+    // Returns true if the connection should be kept open for more requests
+    boolean handle(ClientConnection connection);
+
+    // Whether the request buffered in the parser of the connection comes from a cooperating server rather than a
+    // client. Engines with a bounded number of workers serve such requests on workers of their own, so that they never
+    // wait behind client requests that are themselves waiting for that server
+    default boolean isInternalRequest(ClientConnection connection) {
+        return false;
+    }
+}
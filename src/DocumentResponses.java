@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Responses of the origin server, assembled from immutable buffers instead of being built for every request.
+// A document is the head of its size, the current Date line, the end of the head, a slice of the shared body and
+// the end of the body, written together with one gathering write
+public final class DocumentResponses {
+    public static final int MIN_DOCUMENT_SIZE = 100;
+    public static final int MAX_DOCUMENT_SIZE = 20000;
+    public static final int MAX_PARTS = 5; // Number of buffers of a response
+    // The documents are generated, they never change while the server runs
+    public static final long START_TIME_MILLIS = System.currentTimeMillis() / 1000 * 1000; // HTTP dates have second precision
+    private static final String LAST_MODIFIED = CacheMetadata.HTTP_DATE.format(Instant.ofEpochMilli(START_TIME_MILLIS));
+
+    private static final String HTML_START = "<HTML><HEAD><TITLE>HTML Document</TITLE></HEAD><BODY>"; // Size = 53
+    private static final String HTML_END = "</BODY></HTML>"; // Size = 14
+    private static final ByteBuffer BODY = createBody(); // Start of the largest document, sliced for every size
+    private static final ByteBuffer BODY_END = readOnly(HTML_END);
+    private static final ByteBuffer KEEP_ALIVE_END = readOnly("\r\n"); // Persistent unless stated otherwise
+    private static final ByteBuffer CLOSE_END = readOnly("Connection: close\r\n\r\n");
+    private static final AtomicReferenceArray<SizeHeads> SIZE_HEADS = new AtomicReferenceArray<>(MAX_DOCUMENT_SIZE + 1);
+    private static volatile DateLine dateLine = new DateLine(System.currentTimeMillis() / 1000);
+
+    private DocumentResponses() {
+    }
+
+    // Fill the parts with the 200 response of a document. Returns the number of parts
+    public static int document(int size, boolean keepAlive, ByteBuffer[] parts) {
+        parts[0] = headsOf(size).ok.duplicate(); // Duplicates, every connection needs its own position
+        parts[1] = currentDateLine();
+        parts[2] = (keepAlive ? KEEP_ALIVE_END : CLOSE_END).duplicate();
+        ByteBuffer body = BODY.duplicate();
+        body.limit(size - HTML_END.length()); // The HTML start and size - 67 a's
+        parts[3] = body;
+        parts[4] = BODY_END.duplicate();
+        return 5;
+    }
+
+    // Fill the parts with the 304 response of a document whose copy is still valid. Returns the number of parts
+    public static int notModified(int size, boolean keepAlive, ByteBuffer[] parts) {
+        parts[0] = headsOf(size).notModified.duplicate();
+        parts[1] = currentDateLine();
+        parts[2] = (keepAlive ? KEEP_ALIVE_END : CLOSE_END).duplicate();
+        return 3;
+    }
+
+    // Fill the parts with an error response, whose body is its reason phrase. Errors are rare, they are built on demand
+    public static int error(int statusCode, String reason, boolean keepAlive, ByteBuffer[] parts) {
+        parts[0] = ByteBuffer.wrap(("HTTP/1.1 " + statusCode + " " + reason + "\r\n" +
+                                    "Content-Type: text/plain\r\n" +
+                                    "Content-Length: " + reason.length() + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        parts[1] = currentDateLine();
+        parts[2] = (keepAlive ? KEEP_ALIVE_END : CLOSE_END).duplicate();
+        parts[3] = ByteBuffer.wrap(reason.getBytes(StandardCharsets.ISO_8859_1));
+        return 4;
+    }
+
+    public static String etagOf(int size) { // The document only depends on its size
+        return headsOf(size).etag;
+    }
+
+    public static void write(GatheringByteChannel channel, ByteBuffer[] parts, int count) throws IOException {
+        while (parts[count - 1].hasRemaining()) { // A blocking channel writes everything, unless interrupted
+            channel.write(parts, 0, count);
+        }
+    }
+
+    private static SizeHeads headsOf(int size) { // Created on first use, a race only creates an equal copy
+        SizeHeads heads = SIZE_HEADS.get(size);
+        if (heads == null) {
+            heads = new SizeHeads(size);
+            SIZE_HEADS.set(size, heads);
+        }
+        return heads;
+    }
+
+    private static ByteBuffer currentDateLine() { // Used for the age of cached copies, refreshed once a second
+        long second = System.currentTimeMillis() / 1000;
+        DateLine current = dateLine;
+        if (current.second != second) {
+            current = new DateLine(second);
+            dateLine = current;
+        }
+        return current.line.duplicate();
+    }
+
+    private static ByteBuffer createBody() {
+        ByteBuffer body = ByteBuffer.allocateDirect(MAX_DOCUMENT_SIZE - HTML_END.length());
+        body.put(HTML_START.getBytes(StandardCharsets.ISO_8859_1));
+        while (body.hasRemaining()) {
+            body.put((byte) 'a'); // Repeatedly add a's up to the largest document
+        }
+        body.flip();
+        return body.asReadOnlyBuffer();
+    }
+
+    private static ByteBuffer readOnly(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.ISO_8859_1)).asReadOnlyBuffer();
+    }
+
+    private static final class SizeHeads { // Everything of the head that only depends on the size of the document
+        private final String etag;
+        private final ByteBuffer ok;
+        private final ByteBuffer notModified;
+
+        private SizeHeads(int size) {
+            this.etag = "\"" + size + "\"";
+            String validators = "ETag: " + etag + "\r\n" + "Last-Modified: " + LAST_MODIFIED + "\r\n";
+            this.ok = readOnly("HTTP/1.1 200 OK\r\n" +
+                               "Content-Type: text/html\r\n" +
+                               "Content-Length: " + size + "\r\n" +
+                               validators);
+            this.notModified = readOnly("HTTP/1.1 304 Not Modified\r\n" + validators);
+        }
+    }
+
+    private static final class DateLine {
+        private final long second;
+        private final ByteBuffer line;
+
+        private DateLine(long second) {
+            this.second = second;
+            this.line = readOnly("Date: " + CacheMetadata.HTTP_DATE.format(Instant.ofEpochSecond(second)) + "\r\n");
+        }
+    }
+}
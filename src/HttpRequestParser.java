@@ -0,0 +1,455 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+// Incremental HTTP/1.x request parser working on the bytes of a connection. One parser is kept per connection and
+// its buffer is reused for every request: the request line and the headers are indexed in place, and they are only
+// turned into Strings when asked for. The bytes after the current request, e.g. pipelined requests, stay buffered
+public class HttpRequestParser {
+    public static final int MAX_HEAD_BYTES = 16 * 1024; // Larger request lines and headers are rejected early
+    private static final int MAX_HEADERS = 100;
+    private static final int BODY_BUFFER_BYTES = 8192; // Room for body bytes after a head of the maximum size
+
+    private final byte[] buffer = new byte[MAX_HEAD_BYTES + BODY_BUFFER_BYTES];
+    private final ByteBuffer channelView = ByteBuffer.wrap(buffer); // For reads from a non-blocking channel
+    private int position; // Start of the unparsed bytes
+    private int limit; // End of the received bytes
+    private int bodyBase; // End of the current head, body bytes are buffered after it
+    private int methodEnd; // The method starts at 0, the head is moved to the start of the buffer
+    private int targetStart;
+    private int targetEnd;
+    private int versionStart;
+    private int versionEnd;
+    private int headerCount;
+    private final int[] nameStarts = new int[MAX_HEADERS];
+    private final int[] nameEnds = new int[MAX_HEADERS];
+    private final int[] valueStarts = new int[MAX_HEADERS];
+    private final int[] valueEnds = new int[MAX_HEADERS];
+    private long contentLength; // Length of the body, -1 if it is chunked
+    private boolean bodyRead;
+
+    // Read the next request head, blocking until it is complete. Returns false if the client closed the connection
+    // before starting a new request. The body of the previous request has to be read or skipped before
+    public boolean readRequest(InputStream in) throws IOException {
+        discardConsumed();
+        headerCount = 0;
+        int scanned = 0; // Bytes already searched for the end of the head
+        while (true) {
+            while (position < limit && (buffer[position] == '\r' || buffer[position] == '\n')) { // Empty lines before a request are ignored
+                position++;
+            }
+            if (position > 0) {
+                System.arraycopy(buffer, position, buffer, 0, limit - position);
+                limit -= position;
+                scanned = 0;
+                position = 0;
+            }
+            int headEnd = findHeadEnd(Math.max(0, scanned - 3));
+            if (headEnd >= 0) {
+                parseHead(headEnd);
+                return true;
+            }
+            scanned = limit;
+            if (limit >= MAX_HEAD_BYTES) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+            int read = in.read(buffer, limit, MAX_HEAD_BYTES - limit);
+            if (read == -1) {
+                if (limit == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed in the middle of a request");
+            }
+            limit += read;
+        }
+    }
+
+    // Read what a non-blocking channel has already received, without waiting for more. Returns true if readRequest
+    // will not block: a whole request head, a head over the limit or the end of the stream is buffered
+    public boolean readAvailable(ReadableByteChannel channel) throws IOException {
+        discardConsumed();
+        while (limit < MAX_HEAD_BYTES) {
+            channelView.limit(MAX_HEAD_BYTES).position(limit);
+            int read = channel.read(channelView);
+            if (read == -1) {
+                return true;
+            }
+            if (read == 0) {
+                break;
+            }
+            limit += read;
+        }
+        return limit >= MAX_HEAD_BYTES || hasBufferedRequest();
+    }
+
+    public boolean hasBufferedRequest() { // Whether the whole head of a next request has already been received, e.g. a pipelined one
+        int start = position;
+        while (start < limit && (buffer[start] == '\r' || buffer[start] == '\n')) { // Empty lines before a request are ignored
+            start++;
+        }
+        return start < limit && findHeadEnd(start + 1) >= 0;
+    }
+
+    // Whether the buffered head of the next request has a header with the name, ignoring case. The head is not
+    // parsed, so that an engine can look at a request before a worker reads it
+    public boolean hasBufferedHeader(String name) {
+        int lineStart = position;
+        while (lineStart < limit && (buffer[lineStart] == '\r' || buffer[lineStart] == '\n')) { // Empty lines before a request
+            lineStart++;
+        }
+        int newline = indexOf((byte) '\n', lineStart, limit); // End of the request line
+        while (newline >= 0) {
+            lineStart = newline + 1;
+            newline = indexOf((byte) '\n', lineStart, limit);
+            int lineEnd = (newline > lineStart && buffer[newline - 1] == '\r') ? newline - 1 : newline;
+            if (newline < 0 || lineEnd == lineStart) { // End of the buffered bytes or of the head
+                return false;
+            }
+            int colon = indexOf((byte) ':', lineStart, lineEnd);
+            if (colon > lineStart && regionEquals(lineStart, colon, name, true)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void discardConsumed() { // Move the unparsed bytes to the start of the buffer, every head starts at index 0
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+    }
+
+    private int findHeadEnd(int from) { // Index after the empty line ending the head, or -1
+        for (int i = Math.max(from, 1); i < limit; i++) {
+            if (buffer[i] == '\n' && (buffer[i - 1] == '\n' || (i >= 2 && buffer[i - 1] == '\r' && buffer[i - 2] == '\n'))) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void parseHead(int headEnd) throws ParseException {
+        int lineEnd = lineEnd(0);
+        methodEnd = indexOf((byte) ' ', 0, lineEnd);
+        if (methodEnd <= 0) {
+            throw new ParseException(400, "Bad Request");
+        }
+        targetStart = methodEnd + 1;
+        targetEnd = indexOf((byte) ' ', targetStart, lineEnd);
+        if (targetEnd < 0) { // HTTP/0.9 style request line without a version
+            targetEnd = lineEnd;
+        }
+        if (targetEnd == targetStart) {
+            throw new ParseException(400, "Bad Request");
+        }
+        versionStart = Math.min(targetEnd + 1, lineEnd);
+        versionEnd = lineEnd;
+
+        int lineStart = nextLine(lineEnd);
+        while (lineStart < headEnd) {
+            lineEnd = lineEnd(lineStart);
+            if (lineEnd == lineStart) { // Empty line, end of the head
+                break;
+            }
+            int colon = indexOf((byte) ':', lineStart, lineEnd);
+            if (colon <= lineStart || buffer[lineStart] == ' ' || buffer[lineStart] == '\t') { // Obsolete line folding is rejected
+                throw new ParseException(400, "Bad Request");
+            }
+            if (headerCount == MAX_HEADERS) {
+                throw new ParseException(431, "Request Header Fields Too Large");
+            }
+            int valueStart = colon + 1;
+            int valueEnd = lineEnd;
+            while (valueStart < valueEnd && (buffer[valueStart] == ' ' || buffer[valueStart] == '\t')) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && (buffer[valueEnd - 1] == ' ' || buffer[valueEnd - 1] == '\t')) {
+                valueEnd--;
+            }
+            nameStarts[headerCount] = lineStart;
+            nameEnds[headerCount] = colon;
+            valueStarts[headerCount] = valueStart;
+            valueEnds[headerCount] = valueEnd;
+            headerCount++;
+            lineStart = nextLine(lineEnd);
+        }
+        position = headEnd;
+        bodyBase = headEnd;
+        bodyRead = false;
+
+        if (hasToken("Transfer-Encoding", "chunked")) {
+            contentLength = -1;
+        } else {
+            int index = headerIndex("Content-Length", 0);
+            contentLength = (index >= 0) ? parseDecimal(valueStarts[index], valueEnds[index]) : 0;
+            if (contentLength < 0) {
+                throw new ParseException(400, "Bad Request");
+            }
+        }
+    }
+
+    private int lineEnd(int from) { // End of the line starting at from, without its CR
+        int newline = indexOf((byte) '\n', from, limit);
+        return (newline > from && buffer[newline - 1] == '\r') ? newline - 1 : newline;
+    }
+
+    private int nextLine(int lineEnd) { // Start of the line after the one ending at lineEnd
+        return (buffer[lineEnd] == '\r') ? lineEnd + 2 : lineEnd + 1;
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long parseDecimal(int from, int to) { // Non-negative decimal number, -1 if invalid
+        if (from == to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') {
+                return -1;
+            }
+            value = value * 10 + (buffer[i] - '0');
+        }
+        return value;
+    }
+
+    public boolean isMethod(String method) {
+        return regionEquals(0, methodEnd, method, false);
+    }
+
+    public boolean isVersion(String version) {
+        return regionEquals(versionStart, versionEnd, version, false);
+    }
+
+    public String getRequestLine() { // Allocates, only for logging
+        return ascii(0, versionEnd);
+    }
+
+    public boolean isTarget(String target) {
+        return regionEquals(targetStart, targetEnd, target, false);
+    }
+
+    public String getTarget() { // Allocates, the target is used as a key
+        return ascii(targetStart, targetEnd);
+    }
+
+    // Target as a decimal number after the given number of characters, e.g. 1 for "/500". -1 if it is not a number
+    public long getTargetNumber(int offset) {
+        return parseDecimal(Math.min(targetStart + offset, targetEnd), targetEnd);
+    }
+
+    public void writeTarget(OutputStream out, int offset) throws IOException { // Copy the target bytes after offset
+        out.write(buffer, targetStart + offset, Math.max(0, targetEnd - targetStart - offset));
+    }
+
+    public int getHeaderCount() {
+        return headerCount;
+    }
+
+    public boolean isHeader(int index, String name) { // Whether the header at the index has the name, ignoring case
+        return regionEquals(nameStarts[index], nameEnds[index], name, true);
+    }
+
+    public void writeHeader(int index, OutputStream out) throws IOException { // Copy the header line without its CRLF
+        out.write(buffer, nameStarts[index], valueEnds[index] - nameStarts[index]);
+    }
+
+    public String headerValue(String name) { // Value of the first header with the name, null if there is none. Allocates
+        int index = headerIndex(name, 0);
+        return (index >= 0) ? ascii(valueStarts[index], valueEnds[index]) : null;
+    }
+
+    public boolean headerValueEquals(String name, String value) { // Compare the first header with the name, without allocating
+        int index = headerIndex(name, 0);
+        return index >= 0 && regionEquals(valueStarts[index], valueEnds[index], value, false);
+    }
+
+    // Whether a comma separated header, e.g. Connection or Cache-Control, has the token in any of its lines.
+    // Tokens are compared ignoring case
+    public boolean hasToken(String name, String token) {
+        for (int index = headerIndex(name, 0); index >= 0; index = headerIndex(name, index + 1)) {
+            int tokenStart = valueStarts[index];
+            while (tokenStart <= valueEnds[index]) {
+                int tokenEnd = indexOf((byte) ',', tokenStart, valueEnds[index]);
+                if (tokenEnd < 0) {
+                    tokenEnd = valueEnds[index];
+                }
+                int start = tokenStart;
+                int end = tokenEnd;
+                while (start < end && buffer[start] == ' ') {
+                    start++;
+                }
+                while (end > start && buffer[end - 1] == ' ') {
+                    end--;
+                }
+                if (regionEquals(start, end, token, true)) {
+                    return true;
+                }
+                tokenStart = tokenEnd + 1;
+            }
+        }
+        return false;
+    }
+
+    private int headerIndex(String name, int from) {
+        for (int i = from; i < headerCount; i++) {
+            if (isHeader(i, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean hasBody() {
+        return contentLength != 0;
+    }
+
+    public void skipBody(InputStream in) throws IOException { // Read the body of the request and discard it
+        readBody(in, null);
+    }
+
+    // Read the body of the request, decoding the chunked transfer coding, into the sink. A null sink discards it.
+    // Must be called before the next request is read, unless the connection is closed
+    public void readBody(InputStream in, OutputStream sink) throws IOException {
+        if (bodyRead) {
+            return;
+        }
+        bodyRead = true;
+        if (contentLength >= 0) {
+            copy(in, sink, contentLength);
+            return;
+        }
+        while (true) { // Chunk size line, chunk data and CRLF, until the last chunk
+            int lineEnd = readLine(in);
+            int sizeEnd = indexOf((byte) ';', position, lineEnd); // Chunk extensions are ignored
+            long chunkSize = parseHex(position, (sizeEnd >= 0) ? sizeEnd : lineEnd);
+            if (chunkSize < 0) {
+                throw new ParseException(400, "Bad Request");
+            }
+            position = nextLine(lineEnd);
+            if (chunkSize == 0) {
+                break;
+            }
+            copy(in, sink, chunkSize);
+            lineEnd = readLine(in);
+            if (lineEnd != position) { // Chunk data must be followed by an empty line
+                throw new ParseException(400, "Bad Request");
+            }
+            position = nextLine(lineEnd);
+        }
+        while (true) { // Trailer fields are ignored, until the empty line
+            int lineEnd = readLine(in);
+            boolean empty = lineEnd == position;
+            position = nextLine(lineEnd);
+            if (empty) {
+                return;
+            }
+        }
+    }
+
+    private long parseHex(int from, int to) { // Non-negative hexadecimal number, -1 if invalid
+        while (to > from && (buffer[to - 1] == ' ' || buffer[to - 1] == '\t')) {
+            to--;
+        }
+        if (from == to || to - from > 15) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = Character.digit(buffer[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = value * 16 + digit;
+        }
+        return value;
+    }
+
+    private int readLine(InputStream in) throws IOException { // Buffer a whole body line at position, returns its end
+        int scanned = position;
+        while (true) {
+            int newline = indexOf((byte) '\n', scanned, limit);
+            if (newline >= 0) {
+                return (newline > position && buffer[newline - 1] == '\r') ? newline - 1 : newline;
+            }
+            if (position > bodyBase) { // Move the partial line next to the head, the head stays in place
+                System.arraycopy(buffer, position, buffer, bodyBase, limit - position);
+                limit -= position - bodyBase;
+                position = bodyBase;
+            }
+            if (limit == buffer.length) {
+                throw new ParseException(400, "Bad Request");
+            }
+            scanned = limit;
+            fill(in);
+        }
+    }
+
+    private void copy(InputStream in, OutputStream sink, long length) throws IOException {
+        while (length > 0) {
+            if (position == limit) { // Everything buffered is consumed, reuse the space after the head
+                position = bodyBase;
+                limit = bodyBase;
+                fill(in);
+            }
+            int count = (int) Math.min(length, limit - position);
+            if (sink != null) {
+                sink.write(buffer, position, count);
+            }
+            position += count;
+            length -= count;
+        }
+    }
+
+    private void fill(InputStream in) throws IOException {
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read == -1) {
+            throw new EOFException("Connection closed in the middle of a request body");
+        }
+        limit += read;
+    }
+
+    private boolean regionEquals(int from, int to, String value, boolean ignoreCase) {
+        if (to - from != value.length()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            int b = buffer[from + i] & 0xff;
+            int c = value.charAt(i);
+            if (b != c && (!ignoreCase || Character.toLowerCase(b) != Character.toLowerCase(c))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String ascii(int from, int to) {
+        return new String(buffer, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    // A request that cannot be parsed. The status code is the one to respond with before closing the connection
+    public static final class ParseException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int statusCode;
+
+        public ParseException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+    }
+}
@@ -1,28 +1,35 @@
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 
 public class HttpServer {
+    // Arguments: [port] [engine], the engine is name[:max connections[:worker threads]], see ConnectionEngine.create
     public static void main(String[] args) {
         int port = 8080;
-        if (args.length == 1) { // Accept port number as argument
+        if (args.length >= 1) { // Accept port number as argument
             try {
                 port = Integer.parseInt(args[0]);
             } catch (NumberFormatException e) { // If an invalid argument is entered, start server with port 8080 (HTTP)
-                System.out.println("Invalid port number. Default port 8080 will be used.");
+                Log.warn("Invalid port number. Default port 8080 will be used.");
             }
         } else { // If no argument is entered, start server with port 8080 (HTTP)
-            System.out.println("No argument entered. Default port 8080 will be used.");
+            Log.info("No argument entered. Default port 8080 will be used.");
         }
-        System.out.println("Server is running with port " + port);
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            while (true) {
-                Socket socket = serverSocket.accept(); // Accept Client Socket
-                Thread thread = new Thread(new Session(socket)); // Handle the connection in a new thread
-                thread.start();
-            }
+        String engineName = (args.length >= 2) ? args[1] : "selector"; // Connection engine: selector, virtual or thread, and its limits
+        ConnectionEngine engine = ConnectionEngine.create(engineName);
+        Log.info("Server is running with port " + port + " and " + engineName + " engine");
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port), ConnectionEngine.BACKLOG);
+            engine.serve(serverChannel, connection -> { // Handle the connection with the engine
+                Session session = (Session) connection.getAttachment();
+                if (session == null) { // First request of the connection
+                    session = new Session(connection);
+                    connection.setAttachment(session);
+                }
+                return session.serve();
+            });
         } catch (IOException e) { // IO Exception for Socket
-            System.out.println("Error: " + e.getMessage());
+            Log.error("Error: ", e.getMessage());
         }
     }
 }
@@ -0,0 +1,86 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram with log-linear buckets: every power of two is split into 8 buckets, so a recorded
+// value is reported within 12.5%. Recording only increments striped counters, concurrent threads do not contend
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKET_COUNT];
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        maxNanos.accumulate(value); // Before the count, so that a snapshot never counts a value above its max
+        counts[bucketOf(value)].increment();
+        totalNanos.add(value);
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value); // At least SUB_BUCKET_BITS
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long valueOf(int bucket) { // Middle of the values counted in the bucket
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >> 1);
+    }
+
+    // Append the histogram in the Prometheus text format, in seconds. The snapshot is not atomic, values recorded
+    // meanwhile may be counted in some of the lines only
+    public void appendTo(StringBuilder out, String name) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        long max = maxNanos.get(); // After the counts, it is at least every value they hold
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        for (double quantile : quantiles) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(valueAt(snapshot, count, quantile, max))).append('\n');
+        }
+        out.append(name).append("_max ").append(seconds(max)).append('\n');
+        out.append(name).append("_sum ").append(seconds(totalNanos.sum())).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+    // The middle of the bucket holding the quantile, never above the largest recorded value
+    private static long valueAt(long[] snapshot, long count, double quantile, long max) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+}
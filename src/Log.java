@@ -0,0 +1,121 @@
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Asynchronous, level-gated logging. Callers only enqueue their message, one background thread writes them to the
+// console, so request threads never wait for each other on console writes. Messages below the level set with
+// -Dlog.level (DEBUG, INFO, WARN or ERROR, INFO by default) are discarded before anything is allocated.
+// If the queue is full, messages are dropped and counted instead of blocking the caller. A Throwable detail is
+// written with its stack trace
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int QUEUE_CAPACITY = 16384;
+    private static final Level LEVEL = parseLevel(System.getProperty("log.level", "INFO"));
+    private static final BlockingQueue<Message> QUEUE = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final PrintStream OUT = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 16384), false);
+
+    static {
+        Thread writer = new Thread(Log::writeMessages, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush")); // Messages logged right before exit
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    // The detail is appended to the message by the writer thread, e.g. debug("Cache hit: ", absoluteURL)
+    public static void debug(String message, Object detail) {
+        log(Level.DEBUG, message, detail);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void info(String message, Object detail) {
+        log(Level.INFO, message, detail);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void warn(String message, Object detail) {
+        log(Level.WARN, message, detail);
+    }
+
+    public static void error(String message, Object detail) {
+        log(Level.ERROR, message, detail);
+    }
+
+    private static void log(Level level, String message, Object detail) {
+        if (isEnabled(level) && !QUEUE.offer(new Message(message, detail))) {
+            Metrics.LOG_LINES_DROPPED.increment();
+        }
+    }
+
+    private static void writeMessages() {
+        List<Message> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(QUEUE.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            QUEUE.drainTo(batch);
+            write(batch);
+        }
+    }
+
+    private static void flush() {
+        List<Message> batch = new ArrayList<>();
+        QUEUE.drainTo(batch);
+        write(batch);
+    }
+
+    private static synchronized void write(List<Message> batch) { // Only contended by the shutdown hook
+        for (Message message : batch) {
+            if (message.detail instanceof Throwable) { // Unexpected failures, the trace is the only record of their cause
+                OUT.print(message.text);
+                ((Throwable) message.detail).printStackTrace(OUT);
+            } else {
+                OUT.println((message.detail == null) ? message.text : message.text + message.detail);
+            }
+        }
+        batch.clear();
+        OUT.flush(); // Once per batch, not per message
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    private static final class Message {
+        private final String text;
+        private final Object detail;
+
+        private Message(String text, Object detail) {
+            this.text = text;
+            this.detail = detail;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms of the proxy and the cache. Every metric is a striped counter, the hot paths
+// only increment them and never contend on a shared lock. They are exposed by the proxy on /admin/metrics
+public final class Metrics {
+    public static final LongAdder REQUESTS = new LongAdder();
+    public static final LongAdder ACTIVE_CONNECTIONS = new LongAdder(); // Open client connections
+    public static final LongAdder CACHE_HITS = new LongAdder(); // Fresh documents served from the cache
+    public static final LongAdder CACHE_MISSES = new LongAdder();
+    public static final LongAdder CACHE_REVALIDATIONS = new LongAdder(); // Stale documents checked with the HTTP server
+    public static final LongAdder CACHE_NOT_MODIFIED = new LongAdder(); // Revalidations answered with 304
+    public static final LongAdder COALESCED_REQUESTS = new LongAdder(); // Requests served from another request's fetch
+    public static final LongAdder BYTES_FROM_CACHE = new LongAdder();
+    public static final LongAdder BYTES_FROM_ORIGIN = new LongAdder(); // Forwarded by the fetching request
+    public static final LongAdder BYTES_COALESCED = new LongAdder(); // Forwarded to the waiting requests
+    public static final LongAdder BYTES_FROM_PEERS = new LongAdder(); // Forwarded from the peer owning the URL
+    public static final LongAdder PEER_FORWARDS = new LongAdder(); // Misses fetched from the peer owning the URL
+    public static final LongAdder PEER_FAILURES = new LongAdder(); // Forwards that fell back to the HTTP server
+    public static final LongAdder COLD_EVICTIONS = new LongAdder(); // Documents deleted from the cache
+    public static final LongAdder HOT_EVICTIONS = new LongAdder(); // Documents dropped from memory, kept on disk
+    public static final LongAdder UPSTREAM_CONNECTIONS_OPENED = new LongAdder();
+    public static final LongAdder UPSTREAM_CONNECTIONS_REUSED = new LongAdder();
+    public static final LongAdder LOG_LINES_DROPPED = new LongAdder(); // Log lines lost because the log queue was full
+    public static final LatencyHistogram UPSTREAM_CONNECT = new LatencyHistogram();
+    public static final LatencyHistogram UPSTREAM_FIRST_BYTE = new LatencyHistogram(); // From the request to the status line
+    public static final LatencyHistogram REQUEST_LATENCY = new LatencyHistogram(); // From the parsed request to the response
+
+    private Metrics() {
+    }
+
+    public static void appendTo(StringBuilder out) { // Prometheus text format
+        long hits = CACHE_HITS.sum();
+        long notModified = CACHE_NOT_MODIFIED.sum();
+        long misses = CACHE_MISSES.sum();
+        long revalidations = CACHE_REVALIDATIONS.sum();
+        long lookups = hits + misses + revalidations;
+        appendCounter(out, "proxy_requests_total", REQUESTS.sum());
+        appendCounter(out, "proxy_active_connections", ACTIVE_CONNECTIONS.sum());
+        appendCounter(out, "cache_hits_total", hits);
+        appendCounter(out, "cache_misses_total", misses);
+        appendCounter(out, "cache_revalidations_total", revalidations);
+        appendCounter(out, "cache_revalidations_not_modified_total", notModified);
+        // Documents served without transferring them from the HTTP server, revalidated ones included
+        out.append("cache_hit_ratio ").append((lookups == 0) ? 0.0 : (double) (hits + notModified) / lookups).append('\n');
+        appendCounter(out, "coalesced_requests_total", COALESCED_REQUESTS.sum());
+        appendCounter(out, "bytes_served_total{source=\"cache\"}", BYTES_FROM_CACHE.sum());
+        appendCounter(out, "bytes_served_total{source=\"origin\"}", BYTES_FROM_ORIGIN.sum());
+        appendCounter(out, "bytes_served_total{source=\"coalesced\"}", BYTES_COALESCED.sum());
+        appendCounter(out, "bytes_served_total{source=\"peer\"}", BYTES_FROM_PEERS.sum());
+        appendCounter(out, "peer_forwards_total", PEER_FORWARDS.sum());
+        appendCounter(out, "peer_failures_total", PEER_FAILURES.sum());
+        appendCounter(out, "cache_evictions_total{tier=\"cold\"}", COLD_EVICTIONS.sum());
+        appendCounter(out, "cache_evictions_total{tier=\"hot\"}", HOT_EVICTIONS.sum());
+        appendCounter(out, "upstream_connections_opened_total", UPSTREAM_CONNECTIONS_OPENED.sum());
+        appendCounter(out, "upstream_connections_reused_total", UPSTREAM_CONNECTIONS_REUSED.sum());
+        appendCounter(out, "log_lines_dropped_total", LOG_LINES_DROPPED.sum());
+        UPSTREAM_CONNECT.appendTo(out, "upstream_connect_seconds");
+        UPSTREAM_FIRST_BYTE.appendTo(out, "upstream_first_byte_seconds");
+        REQUEST_LATENCY.appendTo(out, "proxy_request_seconds");
+    }
+
+    public static void appendCounter(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Consistent-hash ring of the proxy instances that share their caches. Every URL is owned by one instance, the
+// others forward their misses of it to the owner, so each document is cached once and the cache capacity grows
+// with the number of instances. Every instance is placed on the ring many times, so that URLs spread evenly and
+// an instance leaving the list only moves the URLs it owned.
+//
+// Membership is static, read from a file with one "host:port" per line ('#' starts a comment). All instances use
+// the same file; an instance finds itself in it by its port and a local address. Only requests from the addresses
+// of the listed hosts, resolved when the list is loaded, are taken as forwarded by a peer
+public class PeerRing {
+    public static final String FORWARDED_HEADER = "X-Proxy-Peer"; // Set on forwarded requests, they are never forwarded again
+    private static final int POINTS_PER_PEER = 160;
+    public static final int RESPONSE_TIMEOUT_MILLIS = 2000; // A peer slower to start its response is bypassed, not skipped
+    private static final long RETRY_AFTER_MILLIS = 5000; // An unreachable peer is skipped for this long
+
+    private final List<Peer> peers;
+    private final Peer self;
+    private final long[] points; // Sorted positions on the ring
+    private final Peer[] owners; // Owner of each position
+    private final Set<InetAddress> addresses; // Addresses of the peer hosts
+
+    public PeerRing(List<Peer> peers, Peer self) {
+        this.peers = List.copyOf(peers);
+        this.self = self;
+        long[][] entries = new long[peers.size() * POINTS_PER_PEER][]; // Position and peer index
+        for (int i = 0; i < peers.size(); i++) {
+            for (int j = 0; j < POINTS_PER_PEER; j++) {
+                entries[i * POINTS_PER_PEER + j] = new long[]{hash(peers.get(i).getName() + "#" + j), i};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[entries.length];
+        this.owners = new Peer[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            points[i] = entries[i][0];
+            owners[i] = peers.get((int) entries[i][1]);
+        }
+        this.addresses = new HashSet<>();
+        for (Peer peer : peers) {
+            try {
+                addresses.addAll(Arrays.asList(InetAddress.getAllByName(peer.getHost())));
+            } catch (IOException e) { // Its forwarded requests are served as client requests
+                Log.warn("Cannot resolve peer ", peer.getHost());
+            }
+        }
+    }
+
+    public static PeerRing load(Path file, int localPort) throws IOException {
+        List<Peer> peers = new ArrayList<>();
+        Peer self = null;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            int comment = line.indexOf('#');
+            String entry = ((comment >= 0) ? line.substring(0, comment) : line).trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colonIndex = entry.lastIndexOf(':');
+            if (colonIndex <= 0) {
+                throw new IOException("Peer is not in host:port format: " + entry);
+            }
+            Peer peer;
+            try {
+                peer = new Peer(entry.substring(0, colonIndex), Integer.parseInt(entry.substring(colonIndex + 1)));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid peer port: " + entry);
+            }
+            peers.add(peer);
+            if (peer.getPort() == localPort && isLocalHost(peer.getHost())) {
+                self = peer;
+            }
+        }
+        if (self == null) {
+            throw new IOException("Port " + localPort + " of this instance is not in the peer list " + file);
+        }
+        return new PeerRing(peers, self);
+    }
+
+    private static boolean isLocalHost(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) { // Unknown host or no interfaces
+            return false;
+        }
+    }
+
+    public Peer ownerOf(String absoluteURL) { // Peer that caches the URL, null if it is this instance
+        int index = Arrays.binarySearch(points, hash(absoluteURL));
+        if (index < 0) {
+            index = -index - 1; // First position after the hash, clockwise
+        }
+        Peer owner = owners[(index == points.length) ? 0 : index];
+        return (owner == self) ? null : owner;
+    }
+
+    public boolean isPeerAddress(InetAddress address) { // Whether a connection from the address may come from a peer
+        return addresses.contains(address);
+    }
+
+    public Peer getSelf() {
+        return self;
+    }
+
+    public List<Peer> getPeers() {
+        return peers;
+    }
+
+    // 64-bit FNV-1a with a final avalanche, the same on every instance. String.hashCode is too weak for a ring:
+    // similar URLs would land next to each other
+    private static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    public static final class Peer {
+        private final String host;
+        private final int port;
+        private final String name; // "host:port"
+        private volatile long unavailableUntilMillis; // Its URLs are fetched from the HTTP server until then
+
+        public Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.name = host + ":" + port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isAvailable() {
+            return System.currentTimeMillis() >= unavailableUntilMillis;
+        }
+
+        public void markUnavailable() { // Misses do not wait for a peer that has just failed
+            unavailableUntilMillis = System.currentTimeMillis() + RETRY_AFTER_MILLIS;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+}
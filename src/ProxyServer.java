@@ -1,151 +1,497 @@
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
 public class ProxyServer {
     private static Cache cache; // Cache of the Proxy Server
+    private static RequestCoalescer coalescer; // Shares upstream fetches of the same URL
+    private static PeerRing peers; // Proxy instances sharing their caches, null if this instance caches alone
+    private static final String ADMIN_METRICS_PATH = "/admin/metrics"; // Metrics of the proxy, for local clients only
+    private static final UpstreamConnectionPool upstreamPool = new UpstreamConnectionPool(32, 30000); // Keep-alive connections to HTTP servers
+    // The fetch of a flight runs on a thread of its own, so that none of its clients can hold it up by not reading
+    private static final ExecutorService fetchExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "upstream-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    // Arguments: [engine] [port] [cache directory] [peer list]. The engine is name[:max connections[:worker threads]],
+    // see ConnectionEngine.create. Instances on the same host need their own port and cache directory. With a peer
+    // list, the instances in it share their caches, see PeerRing
     public static void main(String[] args) {
+        String engineName = (args.length >= 1) ? args[0] : "selector"; // Connection engine: selector, virtual or thread, and its limits
+        ConnectionEngine engine = ConnectionEngine.create(engineName);
+        int port = 8888;
+        if (args.length >= 2) { // Accept port number as argument
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) { // If an invalid argument is entered, start server with port 8888
+                Log.warn("Invalid port number. Default port 8888 will be used.");
+            }
+        }
+        String cacheDirectory = (args.length >= 3) ? args[2] : "cache";
+        if (args.length >= 4) {
+            try {
+                peers = PeerRing.load(Paths.get(args[3]), port);
+            } catch (IOException e) {
+                Log.error("Cannot read the peer list: ", e.getMessage());
+                return;
+            }
+            Log.info("Sharing the cache as " + peers.getSelf() + " with peers ", peers.getPeers());
+        }
+
         Scanner scanner = new Scanner(System.in);
         System.out.print("Enter cache size: "); // Ask the user for the cache size
         int cacheSize = scanner.nextInt(); // Read the input
         scanner.close();
 
-        cache = new Cache(cacheSize); // Create a cache with the given cache size
+        cache = new Cache(cacheSize, cacheDirectory); // Create a cache with the given cache size
+        coalescer = new RequestCoalescer(cache);
 
-        try (ServerSocket serverSocket = new ServerSocket(8888)) { // Start the Proxy Server with port 8888
-            System.out.println("Proxy server is running on port 8888");
-            while (true) {
-                Socket socket = serverSocket.accept(); // Accept the client connections
-                new Thread(() -> proxySession(socket)).start(); // Handle the client request in a new thread
-            }
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) { // Start the Proxy Server with the port
+            serverChannel.bind(new InetSocketAddress(port), ConnectionEngine.BACKLOG);
+            Log.info("Proxy server is running on port " + port + " with " + engineName + " engine");
+            engine.serve(serverChannel, new ProxyHandler()); // Handle the client requests with the engine
         } catch (IOException e) { // IO Exception for Socket
-            System.out.println(e.getMessage());
+            Log.error("Error: ", e.getMessage());
         }
     }
 
-    // Input request is the request came from the client, output response will be the response of the server
-    private static void proxySession(Socket socket) {
-        try (BufferedReader inputRequest = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             OutputStream outputResponse = socket.getOutputStream()) {
-            String strInputRequest = inputRequest.readLine();
+    // Serve the requests of a persistent client connection, including the pipelined ones already received
+    private static boolean proxySession(ClientConnection connection) {
+        try {
+            ClientStreams streams = (ClientStreams) connection.getAttachment();
+            if (streams == null) { // First request of the connection
+                streams = new ClientStreams(connection);
+                connection.setAttachment(streams);
+            }
+            do {
+                if (!proxyRequest(connection, streams)) {
+                    return false;
+                }
+            } while (streams.request.hasBufferedRequest()); // Next request is already buffered, it was pipelined
+            return true;
+        } catch (IOException e) { // Connection error occurred between Proxy and Client, Socket Exception or idle timeout
+            Log.debug("Connection error with Client Socket");
+            return false;
+        }
+    }
 
-            if (strInputRequest == null) { //Sometimes request can be null, so return
-                return;
+    // Input request is the request came from the client, output response will be the response of the server.
+    // Returns true if the connection can be kept open for the next request
+    private static boolean proxyRequest(ClientConnection connection, ClientStreams streams) throws IOException {
+        HttpRequestParser request = streams.request; // Views of the request in the buffer of the connection
+        OutputStream outputResponse = streams.outputResponse;
+        try {
+            if (!request.readRequest(streams.inputRequest)) { // The client closed the connection
+                return false;
+            }
+        } catch (HttpRequestParser.ParseException e) { // Malformed or too large, the framing of the request is unknown
+            sendErrorResponse(outputResponse, e.getStatusCode(), e.getMessage());
+            return false;
+        }
+        long startNanos = System.nanoTime(); // The wait for the request is not part of its latency
+        boolean keepAlive = serveRequest(connection, streams);
+        Metrics.REQUEST_LATENCY.record(System.nanoTime() - startNanos);
+        return keepAlive;
+    }
+
+    // Respond to the request parsed by proxyRequest, from the cache or the HTTP server
+    private static boolean serveRequest(ClientConnection connection, ClientStreams streams) throws IOException {
+        HttpRequestParser request = streams.request;
+        boolean keepAlive = connection.startRequest(); // The connection is closed after the request limit
+        Metrics.REQUESTS.increment();
+
+        if (Log.isEnabled(Log.Level.DEBUG)) { // The request line is only turned into a String when it is logged
+            Log.debug("Client request: ", request.getRequestLine());
+        }
+        keepAlive &= isPersistentRequest(request);
+        // Responses are written as stored or as received. The last one of the connection has to tell the client
+        // that the connection closes, so that it does not send further requests on it
+        WritableByteChannel responseChannel = connection.getChannel();
+        OutputStream outputResponse = streams.outputResponse;
+        if (!keepAlive) {
+            responseChannel = new ClientResponseChannel(connection.getChannel(), true, null);
+            outputResponse = Channels.newOutputStream(responseChannel);
+        }
+
+        if (!request.isMethod("GET")) {
+            sendErrorResponse(outputResponse, 400, "Bad Request");
+            return false;
+        }
+        if (request.hasBody()) { // A GET body has no meaning, it is read so that the next request can be parsed
+            try {
+                request.skipBody(streams.inputRequest);
+            } catch (HttpRequestParser.ParseException e) {
+                sendErrorResponse(outputResponse, e.getStatusCode(), e.getMessage());
+                return false;
             }
+        }
 
-            String[] strInputRequestParts = strInputRequest.split(" ");
-            System.out.println("Client request: " + strInputRequest);
+        if (request.isTarget(ADMIN_METRICS_PATH)) { // Origin-form request for the proxy itself, not for an HTTP server
+            return sendMetrics(connection, outputResponse, keepAlive);
+        }
 
+        String absoluteURL = request.getTarget(); // Full URL of the client request, the key of the cache
+        String host = ""; // Host to be directed
+        int port = 0; // Port of the host to be directed
+        int pathStart = -1; // Index of the path in the URL, the path is the requested size of the HTML document
 
-            if (strInputRequestParts.length < 2 || !strInputRequest.startsWith("GET")) {
+        if (absoluteURL.startsWith("http://")) { // Check if the URL states HTTP protocol
+            pathStart = absoluteURL.indexOf('/', 7); // The HTTP protocol part is skipped, as it is useless
+            int hostEnd = (pathStart != -1) ? pathStart : absoluteURL.length();
+            int colonIndex = absoluteURL.indexOf(':', 7); // Before : indicates host IP (localhost), the rest the port
+            if (colonIndex != -1 && colonIndex < hostEnd) {
+                host = absoluteURL.substring(7, colonIndex);
+                port = parsePort(absoluteURL, colonIndex + 1, hostEnd);
+            } else {
+                host = absoluteURL.substring(7, hostEnd);
+                port = 80;
+            }
+            if (port < 0) { // Sometimes, invalid URLs can be received. They cannot be fetched, nor cached
+                Log.debug("Invalid URL received: ", absoluteURL);
                 sendErrorResponse(outputResponse, 400, "Bad Request");
-                return;
+                return false;
             }
+        }
 
-            String absoluteURL = strInputRequestParts[1]; // Full URL of the client request
-            String host = ""; // Host to be directed
-            String requestedSize = ""; // Requested size of the HTML document
-            int port = 0; // Port of the host to be directed
+        if (host.equals("localhost") && port == 8080) { // Check if the request is in localhost:8080 format
+            // Convert the file size into a number, if conversion fails, then it means invalid request
+            long htmlFileSize = (pathStart != -1) ? request.getTargetNumber(pathStart + 1) : -1;
+            if (htmlFileSize < 0) {
+                sendErrorResponse(outputResponse, 400, "Bad Request");
+                return false;
+            } else if (htmlFileSize > 9999) { // Check whether requested URI is too long
+                sendErrorResponse(outputResponse, 414, "Request-URI Too Long"); // Send error code 414
+                Log.debug("Error file size is greater than 9999");
+                return false;
+            }
+        }
 
-            if (absoluteURL.startsWith("http://")) { // Check if the URL states HTTP protocol
-                try {
-                    String urlWithoutHTTP = absoluteURL.substring(7); // Eliminate the HTTP protocol part, as it is useless
-                    int slashIndex = urlWithoutHTTP.indexOf('/'); // Find the index of the backslash
-                    // If there's a backslash, assume the rest indicates the file size. Else, no file size stated
-                    String hostAndPort = (slashIndex != -1) ? urlWithoutHTTP.substring(0, slashIndex) : urlWithoutHTTP;
-                    requestedSize = (slashIndex != -1) ? urlWithoutHTTP.substring(slashIndex) : "";
-
-                    int colonIndex = hostAndPort.indexOf(':'); // Find the index of the :
-                    host = hostAndPort.substring(0, colonIndex); // Before : indicates host IP (localhost)
-                    port = Integer.parseInt(hostAndPort.substring(colonIndex + 1)); // Rest indicates the port number
-                } catch (Exception e) {
-                    System.out.println("Invalid URL received: " + absoluteURL); // Sometimes, invalid URLs can be received
+        // Serve from cache if available and still fresh
+        CacheMetadata cached = cache.getCacheMetadata(absoluteURL); // Freshness information of the cached document
+        CacheMetadata revalidating = null; // Stale cached document that a conditional request may revalidate
+        if (cached != null && cached.matchesVariant(streams.headerLookup)) { // Check if the URL exists in Cache, for the same Vary headers
+            if (cached.isFresh(System.currentTimeMillis()) && !requiresRevalidation(request)) {
+                Log.debug("Cache hit: ", absoluteURL); // Cache is hit. No need to forward anything to HTTP
+                String etag = cached.getETag();
+                if (etag != null && request.headerValueEquals("If-None-Match", etag)) {
+                    Metrics.CACHE_HITS.increment();
+                    sendNotModified(outputResponse, etag); // The client already has this version
+                    return keepAlive;
+                }
+                // Send the HTML document to client straight from the Cache, false if it was evicted in the meantime
+                if (cache.sendHtmlDocFromCache(absoluteURL, responseChannel)) {
+                    Metrics.CACHE_HITS.increment();
+                    return keepAlive;
                 }
+                Metrics.CACHE_MISSES.increment();
+            } else if (cached.hasValidators()) { // Ask the HTTP server whether the cached document is still valid
+                Log.debug("Cache hit, but stale: ", absoluteURL);
+                Metrics.CACHE_REVALIDATIONS.increment();
+                revalidating = cached;
+            } else { // Cannot be revalidated, publishing the new response replaces it
+                Log.debug("Cache hit, but stale and without validators: ", absoluteURL);
+                Metrics.CACHE_MISSES.increment();
             }
+        } else {
+            Log.debug("Cache miss: ", absoluteURL);
+            Metrics.CACHE_MISSES.increment();
+        }
 
-            if (host.equals("localhost") && port == 8080) { // Check if the request is in localhost:8080 format
-                int htmlFileSize;
+        RequestHead upstreamRequest = streams.upstreamRequest; // Reused for every request of the connection
+        // A miss of a URL owned by another instance is fetched from its cache. Requests forwarded by a peer are
+        // served here, even if the peer lists disagree, so that a request is never forwarded in a loop
+        if (peers != null && revalidating == null && !isForwardedByPeer(connection, request)) {
+            PeerRing.Peer owner = peers.ownerOf(absoluteURL);
+            if (owner != null && owner.isAvailable()) {
+                ForwardingOutputStream peerResponse = new ForwardingOutputStream(outputResponse, Metrics.BYTES_FROM_PEERS);
                 try {
-                    htmlFileSize = Integer.parseInt(requestedSize.substring(1)); // Convert the file size into integer
-                    if (htmlFileSize > 9999) { // Check whether requested URI is too long
-                        sendErrorResponse(outputResponse, 414, "Request-URI Too Long"); // Send error code 414
-                        System.out.println("Error file size is greater than 9999");
-                        return;
+                    boolean framed = forwardToPeer(owner, request, upstreamRequest, peerResponse);
+                    Metrics.PEER_FORWARDS.increment();
+                    return keepAlive && framed;
+                } catch (SocketTimeoutException e) { // Busy, e.g. fetching from a slow HTTP server. It is asked again next time
+                    if (peerResponse.hasData()) {
+                        return false;
+                    }
+                    Metrics.PEER_FAILURES.increment();
+                    if (Log.isEnabled(Log.Level.DEBUG)) { // The message is only built when it is logged
+                        Log.debug("Peer " + owner + " is slow, fetching from the HTTP server: ", absoluteURL);
+                    }
+                } catch (IOException e) {
+                    if (peerResponse.hasData()) { // Part of the response has been forwarded, it cannot be completed
+                        return false;
                     }
-                } catch (NumberFormatException e) { // If conversion to integer fails, then it means invalid request
-                    sendErrorResponse(outputResponse, 400, "Bad Request");
-                    return;
+                    owner.markUnavailable();
+                    Metrics.PEER_FAILURES.increment();
+                    Log.warn("Cannot reach peer " + owner + ", fetching from the HTTP server: ", absoluteURL);
                 }
             }
+        }
+
+        upstreamRequest.reset();
+        upstreamRequest.writeAscii("GET "); // Forward the URL to the HTTP server
+        if (pathStart != -1) {
+            request.writeTarget(upstreamRequest, pathStart);
+        } else {
+            upstreamRequest.writeAscii("/");
+        }
+        upstreamRequest.writeAscii(" HTTP/1.1\r\n");
 
-            boolean shouldBeUpdated = false; // Check if the HTML document associated with the URL should be updated
+        // Forward the headers received from the client to the HTTP server, except the hop-by-hop ones, the framing
+        // of the dropped body and the mark of a peer. The fetch is shared with other clients and cached, so the
+        // client's conditional headers are not forwarded; when revalidating, those of the cached document are sent
+        for (int i = 0; i < request.getHeaderCount(); i++) {
+            if (!isHopByHopHeader(request, i) && !isBodyHeader(request, i) && !request.isHeader(i, PeerRing.FORWARDED_HEADER)
+                    && !isConditionalHeader(request, i)) {
+                request.writeHeader(i, upstreamRequest);
+                upstreamRequest.writeAscii("\r\n");
+            }
+        }
+        int unconditionalSize = upstreamRequest.size(); // The request without the conditional headers of the cached document
+        if (revalidating != null) {
+            upstreamRequest.writeAscii(revalidating.conditionalHeaders());
+        }
+        upstreamRequest.writeAscii("Connection: keep-alive\r\n\r\n"); // The upstream connection is kept in the pool
 
-            // Serve from cache if available
-            if (cache.isUrlExistsInCache(absoluteURL)) { // Check if the URL exists in Cache
-                if (!cache.isCacheFileModified(absoluteURL)) { // Check if the URL is modified
-                    System.out.println("Cache hit: " + absoluteURL); // Cache is hit. No need to forward anything to HTTP
-                    byte[] cachedHtmlDoc = cache.getHtmlDocFromCache(absoluteURL); // Retrieve the document from the Cache
-                    if (cachedHtmlDoc != null) { // Check if the document is null. If not null, we can display the document
-                        outputResponse.write(cachedHtmlDoc); // Send the HTML document to client
-                        return;
+        String ifNoneMatch = request.headerValue("If-None-Match"); // Answered from the fetched response instead
+        if (ifNoneMatch != null) {
+            responseChannel = new ClientResponseChannel(connection.getChannel(), !keepAlive, ifNoneMatch);
+            outputResponse = Channels.newOutputStream(responseChannel);
+        }
+
+        RequestCoalescer.Flight flight = coalescer.join(absoluteURL); // Check if the URL is already being fetched
+        try {
+            Future<?> fetch = null;
+            if (flight.claimLeadership(streams.headerLookup)) { // This client is served from the spool like the waiting ones
+                String fetchHost = host;
+                int fetchPort = port;
+                CacheMetadata stale = revalidating;
+                fetch = fetchExecutor.submit(() ->
+                        fetchIntoFlight(flight, absoluteURL, fetchHost, fetchPort, upstreamRequest, unconditionalSize, stale));
+            } else if (flight.servesVariant(streams.headerLookup)) { // Another client is fetching the same URL, wait for its response
+                Log.debug("Waiting for in-flight fetch: ", absoluteURL);
+                Metrics.COALESCED_REQUESTS.increment();
+            } else { // The response varies on a request header that this client sends differently
+                Log.debug("In-flight fetch is another variant, fetching alone: ", absoluteURL);
+                return fetchAlone(host, port, upstreamRequest, unconditionalSize, outputResponse) && keepAlive;
+            }
+            try {
+                if (flight.streamTo(responseChannel, (fetch != null) ? Metrics.BYTES_FROM_ORIGIN : Metrics.BYTES_COALESCED)) {
+                    if (flight.isNotModified()) { // The fetch revalidated the cached document
+                        CacheMetadata revalidated = cache.getCacheMetadata(absoluteURL);
+                        if (revalidated != null && revalidated.matchesVariant(streams.headerLookup)
+                                && cache.sendHtmlDocFromCache(absoluteURL, responseChannel)) {
+                            return keepAlive;
+                        }
+                        // Another variant, or evicted right after the revalidation. Nothing has been sent yet
+                        return fetchAlone(host, port, upstreamRequest, unconditionalSize, outputResponse) && keepAlive;
                     }
-                } else { // Cache is found, however it is modified. Meaning that we should update the cache
-                    System.out.println("Cache hit, but modified: " + absoluteURL);
-                    shouldBeUpdated = true; //
+                    return keepAlive && flight.isFramed(); // Without framing the client reads the response until close
+                }
+                if (!flight.hasData()) { // The fetch failed before receiving anything
+                    sendErrorResponse(outputResponse, 404, "Not Found");
                 }
+                return false;
+            } finally {
+                if (fetch != null) { // The fetch reads the request buffer and headers of this connection until it ends
+                    awaitFetch(fetch);
+                }
+            }
+        } finally {
+            flight.leave();
+        }
+    }
+
+    // Fetch the response of a flight from the HTTP server into its spool and the cache, on a fetch thread. Nothing
+    // is written to the clients from here, they are all served from the spool by streamTo
+    private static void fetchIntoFlight(RequestCoalescer.Flight flight, String absoluteURL, String host, int port,
+                                        RequestHead upstreamRequest, int unconditionalSize, CacheMetadata revalidating) {
+        boolean completed = false; // Whether the response is complete, so that it can be cached and shared
+        boolean framed = false; // Whether the end of the response is known without closing the connection
+        boolean notModified = false; // Whether the HTTP server answered the revalidation with 304
+        try { // Forward the request on a pooled connection for miss or stale cache
+            OutputStream flightSink = new FlightOutputStream(flight);
+            OutputStream responseSink = flightSink;
+            RevalidationOutputStream revalidation = null;
+            if (revalidating != null) { // A 304 must not reach the clients or replace the cached document
+                revalidation = new RevalidationOutputStream(flightSink);
+                responseSink = revalidation;
+            }
+            framed = upstreamPool.exchange(host, port, upstreamRequest.array(), upstreamRequest.size(), responseSink);
+            if (revalidation != null && revalidation.isNotModified()) {
+                notModified = cache.refreshCacheEntry(absoluteURL, revalidation.getHead());
+                if (!notModified) { // Evicted during the revalidation, nothing has been spooled yet: fetch the full document
+                    upstreamRequest.truncate(unconditionalSize);
+                    upstreamRequest.writeAscii("Connection: keep-alive\r\n\r\n");
+                    framed = upstreamPool.exchange(host, port, upstreamRequest.array(), upstreamRequest.size(), flightSink);
+                }
+            }
+            completed = true;
+            // Cache before the flight ends, so that a request arriving in between joins the flight instead of missing.
+            // Responses without framing are not cached, they could not be served on persistent connections
+            if (!notModified && framed) {
+                flight.publishToCache();
+            }
+        } catch (IOException e) { // Connection error occurred between Proxy and HTTP, HTTP server may not be running
+            Log.warn("Cannot establish connection with HTTP server");
+        } finally {
+            if (completed && notModified) {
+                Metrics.CACHE_NOT_MODIFIED.increment();
+                coalescer.completeNotModified(flight);
+            } else if (completed) {
+                coalescer.complete(flight, framed);
             } else {
-                System.out.println("Cache miss: " + absoluteURL);
+                coalescer.fail(flight); // The partial response is discarded, the clients get an error or are closed
             }
+        }
+    }
 
-            List<String> headers = new ArrayList<>(); // List of all headers received from the client
-            String headerLine;
-            ByteArrayOutputStream responseBuffer = new ByteArrayOutputStream();
+    // Fetch a response for this client only, without the conditional headers of the cached document. It is neither
+    // shared nor cached. Returns true if the response was framed
+    private static boolean fetchAlone(String host, int port, RequestHead upstreamRequest, int unconditionalSize,
+                                      OutputStream outputResponse) throws IOException {
+        upstreamRequest.truncate(unconditionalSize);
+        upstreamRequest.writeAscii("Connection: keep-alive\r\n\r\n");
+        ForwardingOutputStream response = new ForwardingOutputStream(outputResponse, Metrics.BYTES_FROM_ORIGIN);
+        try {
+            return upstreamPool.exchange(host, port, upstreamRequest.array(), upstreamRequest.size(), response);
+        } catch (IOException e) {
+            if (!response.hasData()) { // Only respond with an error if nothing has been forwarded yet
+                sendErrorResponse(outputResponse, 404, "Not Found");
+            }
+            Log.warn("Cannot establish connection with HTTP server");
+            return false;
+        }
+    }
 
-            // Store all the headers received from the client, so we can forward them to HTTP server
-            while ((headerLine = inputRequest.readLine()) != null && !headerLine.isEmpty()) {
-                headers.add(headerLine);
+    private static void awaitFetch(Future<?> fetch) { // Returns once the fetch has ended, successfully or not
+        boolean interrupted = false;
+        while (true) {
+            try {
+                fetch.get();
+                break;
+            } catch (ExecutionException e) {
+                Log.error("Fetch failed: ", e.getCause());
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            try (Socket proxyHttpSocket = new Socket(host, port); // Connect to HTTP server for miss or modified cache
-                 InputStream inputHTTP = proxyHttpSocket.getInputStream(); // Input request to the HTTP server
-                 PrintWriter webServerWriter = new PrintWriter(proxyHttpSocket.getOutputStream(), true)) { // Output response from the HTTP server
+    // Forward the request to the peer owning the URL, in absolute form as from any client. The response is not
+    // cached here, the owner caches it. A peer that does not start its response in time is not waited for, the
+    // HTTP server is faster then. Returns true if the response was framed
+    private static boolean forwardToPeer(PeerRing.Peer owner, HttpRequestParser request, RequestHead peerRequest,
+                                         OutputStream responseSink) throws IOException {
+        peerRequest.reset();
+        peerRequest.writeAscii("GET ");
+        request.writeTarget(peerRequest, 0);
+        peerRequest.writeAscii(" HTTP/1.1\r\n");
+        for (int i = 0; i < request.getHeaderCount(); i++) { // The client's conditional headers are kept, the owner answers them
+            if (!isHopByHopHeader(request, i) && !isBodyHeader(request, i) && !request.isHeader(i, PeerRing.FORWARDED_HEADER)) {
+                request.writeHeader(i, peerRequest);
+                peerRequest.writeAscii("\r\n");
+            }
+        }
+        peerRequest.writeAscii(PeerRing.FORWARDED_HEADER + ": " + peers.getSelf().getName() + "\r\n");
+        peerRequest.writeAscii("Connection: keep-alive\r\n\r\n");
+        return upstreamPool.exchange(owner.getHost(), owner.getPort(), peerRequest.array(), peerRequest.size(), responseSink,
+                PeerRing.RESPONSE_TIMEOUT_MILLIS);
+    }
 
-                proxyHttpSocket.setSoTimeout(10000); // Timeout for 10 seconds
+    // Metrics in the Prometheus text format. Only clients on the same host may read them
+    private static boolean sendMetrics(ClientConnection connection, OutputStream outputResponse, boolean keepAlive) throws IOException {
+        if (!connection.getSocket().getInetAddress().isLoopbackAddress()) {
+            sendErrorResponse(outputResponse, 404, "Not Found");
+            return false;
+        }
+        StringBuilder body = new StringBuilder(4096);
+        Metrics.appendTo(body);
+        Metrics.appendCounter(body, "cache_entries", cache.getEntryCount());
+        Metrics.appendCounter(body, "cache_hot_tier_bytes", cache.getHotTierBytes());
+        byte[] content = body.toString().getBytes(StandardCharsets.ISO_8859_1);
+        outputResponse.write(("HTTP/1.1 200 OK\r\n" +
+                              "Content-Type: text/plain; version=0.0.4\r\n" +
+                              "Content-Length: " + content.length + "\r\n" +
+                              "Cache-Control: no-store\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        outputResponse.write(content);
+        outputResponse.flush();
+        return keepAlive;
+    }
 
-                // All headers received from the client is forwarded to HTTP server with correct format
-                String headersString = String.join("\r\n", headers) + "\r\n";
+    // Requests forwarded by a peer are marked with PeerRing.FORWARDED_HEADER. The mark is only honored on connections
+    // from a peer host, clients cannot use it to skip the forwarding or take the workers of the peers
+    private static boolean isForwardedByPeer(ClientConnection connection, HttpRequestParser request) {
+        return request.headerValue(PeerRing.FORWARDED_HEADER) != null && isFromPeer(connection);
+    }
 
-                webServerWriter.print("GET " + requestedSize + " HTTP/1.1\r\n"); // Forward the URL to the HTTP server
-                webServerWriter.print(headersString + "\n"); // Forward all headers to the HTTP server
-                webServerWriter.flush();
+    private static boolean isFromPeer(ClientConnection connection) {
+        return peers != null && peers.isPeerAddress(connection.getSocket().getInetAddress());
+    }
 
-                byte[] buffer = new byte[4096]; // Initialize for file reading
-                int bytesRead;
-                while ((bytesRead = inputHTTP.read(buffer)) != -1) { // Read the document received from the HTTP server
-                    outputResponse.write(buffer, 0, bytesRead); // Forward this HTML document to client
-                    responseBuffer.write(buffer, 0, bytesRead);
-                }
-                if (shouldBeUpdated) { // If the URL received from the client is cache hit but modified, update the cache
-                    cache.updateCacheFile(absoluteURL, responseBuffer.toByteArray());
-                } else { // If the URL received from is cache miss, add it to the cache
-                    cache.addHtmlDocToCache(absoluteURL, responseBuffer.toByteArray());
-                }
-            } catch (SocketTimeoutException e) { // Connection close due to timeout, and we cache the response (we assume the response is complete)
-                if (shouldBeUpdated) { // If the URL received from the client is cache hit but modified, update the cache
-                    cache.updateCacheFile(absoluteURL, responseBuffer.toByteArray());
-                } else { // If the URL received from is cache miss, add it to the cache
-                    cache.addHtmlDocToCache(absoluteURL, responseBuffer.toByteArray());
-                }
-            } catch (IOException e) { // Connection error occurred between Proxy and HTTP, HTTP server may not be running
-                sendErrorResponse(outputResponse, 404, "Not Found"); // Send Not Found 404 error to client
-                System.out.println("Cannot establish connection with HTTP server");
+    private static boolean requiresRevalidation(HttpRequestParser request) { // The client asks not to be served from cache
+        return request.hasToken("Cache-Control", "no-cache") || request.hasToken("Cache-Control", "max-age=0")
+                || request.hasToken("Pragma", "no-cache");
+    }
+
+    private static boolean isConditionalHeader(HttpRequestParser request, int index) {
+        return request.isHeader(index, "If-None-Match") || request.isHeader(index, "If-Modified-Since");
+    }
+
+    private static int parsePort(String url, int from, int to) { // Decimal port number from 1 to 65535, -1 if it is invalid
+        if (from == to || to - from > 5) {
+            return -1;
+        }
+        int port = 0;
+        for (int i = from; i < to; i++) {
+            char c = url.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
             }
-        } catch (IOException e) { // Connection error occurred between Proxy and Client, Socket Exception
-            System.out.println("Connection error with Client Socket");
+            port = port * 10 + (c - '0');
+        }
+        return (port >= 1 && port <= 65535) ? port : -1;
+    }
+
+    private static void sendNotModified(OutputStream clientOutput, String etag) throws IOException {
+        clientOutput.write(("HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        clientOutput.flush();
+    }
+
+    // HTTP/1.1 connections are persistent unless the client asks to close, HTTP/1.0 ones only if it asks to keep alive
+    private static boolean isPersistentRequest(HttpRequestParser request) {
+        if (request.hasToken("Connection", "close") || request.hasToken("Proxy-Connection", "close")) {
+            return false;
         }
+        return request.isVersion("HTTP/1.1") || request.hasToken("Connection", "keep-alive")
+                || request.hasToken("Proxy-Connection", "keep-alive");
+    }
+
+    private static boolean isHopByHopHeader(HttpRequestParser request, int index) { // Headers that only apply to the client connection
+        return request.isHeader(index, "Connection") || request.isHeader(index, "Proxy-Connection")
+                || request.isHeader(index, "Keep-Alive");
+    }
+
+    private static boolean isBodyHeader(HttpRequestParser request, int index) { // Framing of the request body
+        return request.isHeader(index, "Content-Length") || request.isHeader(index, "Transfer-Encoding");
     }
 
     private static void sendErrorResponse(OutputStream clientOutput, int statusCode, String message) throws IOException {
@@ -155,4 +501,232 @@ public class ProxyServer {
         outputWriter.println(message); // Add the content, which is the message
         outputWriter.flush(); // Flush the output response, so the HTML document can be seen on the browser
     }
+
+    // Requests forwarded by a peer are internal: they are served by workers of their own, as the client requests
+    // here may all be waiting for that peer. They are never forwarded again, so the two instances cannot wait for each other
+    private static final class ProxyHandler implements ConnectionHandler {
+        @Override
+        public boolean handle(ClientConnection connection) {
+            return proxySession(connection);
+        }
+
+        @Override
+        public boolean isInternalRequest(ClientConnection connection) {
+            return connection.getRequest().hasBufferedHeader(PeerRing.FORWARDED_HEADER) && isFromPeer(connection);
+        }
+    }
+
+    private static final class ClientStreams { // Streams and buffers of a client connection, kept between its requests
+        private final InputStream inputRequest;
+        private final OutputStream outputResponse;
+        private final HttpRequestParser request;
+        private final Function<String, String> headerLookup; // Request headers for Vary
+        private final RequestHead upstreamRequest = new RequestHead();
+
+        private ClientStreams(ClientConnection connection) throws IOException {
+            this.inputRequest = connection.getSocket().getInputStream();
+            this.outputResponse = connection.getSocket().getOutputStream();
+            this.request = connection.getRequest();
+            this.headerLookup = request::headerValue;
+        }
+    }
+
+    private static final class RequestHead extends ByteArrayOutputStream { // Request to the HTTP server, built in place
+        private RequestHead() {
+            super(1024);
+        }
+
+        private void writeAscii(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                write(text.charAt(i));
+            }
+        }
+
+        private byte[] array() { // Valid up to size(), no copy is made
+            return buf;
+        }
+
+        private void truncate(int size) { // Drop the bytes written after size
+            count = size;
+        }
+    }
+
+    // Spools the upstream response for the clients of the flight and the cache
+    private static final class FlightOutputStream extends OutputStream {
+        private final RequestCoalescer.Flight flight;
+
+        private FlightOutputStream(RequestCoalescer.Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            flight.append(buffer, offset, length);
+        }
+    }
+
+    // Forwards a response that is not shared, e.g. from a peer, to the client, remembering whether anything has been sent yet
+    private static final class ForwardingOutputStream extends OutputStream {
+        private final OutputStream outputResponse;
+        private final LongAdder servedBytes;
+        private boolean data;
+
+        private ForwardingOutputStream(OutputStream outputResponse, LongAdder servedBytes) {
+            this.outputResponse = outputResponse;
+            this.servedBytes = servedBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            data = true;
+            outputResponse.write(buffer, offset, length);
+            servedBytes.add(length);
+        }
+
+        private boolean hasData() {
+            return data;
+        }
+    }
+
+    // Rewrites the head of a response on its way to the client, the head is held back until its end is found. The
+    // last response of a connection gets "Connection: close". A 200 with the ETag the client sent in If-None-Match
+    // becomes a 304 Not Modified, its body is dropped. The rest of the response is passed on as it is
+    private static final class ClientResponseChannel implements WritableByteChannel {
+        private static final byte[] CLOSE_HEADER = "Connection: close\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+        private final SocketChannel channel;
+        private final boolean close;
+        private final String ifNoneMatch; // Validator of the client's copy, null if it has none
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(512);
+        private int lineStart; // Start of the current line of the head
+        private boolean lineEmpty = true; // Whether the current line has no content yet, a CR does not count
+        private boolean headWritten;
+        private boolean bodyDropped;
+
+        private ClientResponseChannel(SocketChannel channel, boolean close, String ifNoneMatch) {
+            this.channel = channel;
+            this.close = close;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            while (!headWritten && source.hasRemaining()) {
+                byte b = source.get();
+                head.write(b);
+                if (b != '\n') {
+                    lineEmpty &= (b == '\r');
+                } else if (lineEmpty) { // The empty line ending the head
+                    writeHead();
+                    headWritten = true;
+                } else {
+                    lineStart = head.size();
+                    lineEmpty = true;
+                }
+            }
+            if (bodyDropped) {
+                source.position(source.limit());
+            }
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            return length;
+        }
+
+        private void writeHead() throws IOException {
+            byte[] received = head.toByteArray();
+            int emptyLineStart = lineStart;
+            if (ifNoneMatch != null && CacheMetadata.statusCodeOf(ByteBuffer.wrap(received)) == 200) {
+                String etag = CacheMetadata.parse(ByteBuffer.wrap(received), System.currentTimeMillis(), name -> null).getETag();
+                if (ifNoneMatch.equals(etag)) { // The client already has this version
+                    received = ("HTTP/1.1 304 Not Modified\r\nETag: " + etag + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                    emptyLineStart = received.length - 2;
+                    bodyDropped = true;
+                }
+            }
+            ByteBuffer[] parts = {ByteBuffer.wrap(received, 0, emptyLineStart),
+                                  ByteBuffer.wrap(close ? CLOSE_HEADER : new byte[0]), // Goes before the empty line
+                                  ByteBuffer.wrap(received, emptyLineStart, received.length - emptyLineStart)};
+            while (parts[2].hasRemaining()) {
+                channel.write(parts);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Holds back the head of a revalidation response. A 304 Not Modified is kept for refreshing the cache entry,
+    // any other response is passed on as a normal response
+    private static final class RevalidationOutputStream extends OutputStream {
+        private final OutputStream fullResponse;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(); // Status line and headers
+        private boolean headComplete;
+        private boolean notModified;
+
+        private RevalidationOutputStream(OutputStream fullResponse) {
+            this.fullResponse = fullResponse;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (headComplete) {
+                if (!notModified) {
+                    fullResponse.write(buffer, offset, length);
+                }
+                return;
+            }
+            head.write(buffer, offset, length);
+            byte[] received = head.toByteArray();
+            int headEnd = findHeadEnd(received);
+            if (headEnd < 0) {
+                return;
+            }
+            headComplete = true;
+            notModified = CacheMetadata.statusCodeOf(ByteBuffer.wrap(received, 0, headEnd)) == 304;
+            if (!notModified) { // Forward what was held back
+                fullResponse.write(received, 0, received.length);
+            }
+        }
+
+        private static int findHeadEnd(byte[] received) { // Index after the empty line ending the headers, or -1
+            for (int i = 1; i < received.length; i++) {
+                if (received[i] == '\n' && (received[i - 1] == '\n' || (i >= 2 && received[i - 1] == '\r' && received[i - 2] == '\n'))) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private boolean isNotModified() {
+            return headComplete && notModified;
+        }
+
+        private ByteBuffer getHead() {
+            return ByteBuffer.wrap(head.toByteArray());
+        }
+    }
 }
@@ -0,0 +1,274 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Single-flight: concurrent misses of the same URL share one upstream fetch. The leader streams the response
+// into a cache writer, and every client, the leader's own included, is served from that temporary file as it
+// grows. A client that stops reading only holds up itself, never the fetch nor the other clients. Flights are keyed
+// by URL, a response that Vary on a request header only serves the waiters that send the same value, see servesVariant
+public class RequestCoalescer {
+    private static final int MAX_HEAD_BYTES = 8192; // Only this prefix of a response is searched for its headers
+
+    private final Cache cache;
+    private final Map<String, Flight> inFlight = new ConcurrentHashMap<>(); // Have a "absoluteURL":"running fetch" mapping
+
+    public RequestCoalescer(Cache cache) {
+        this.cache = cache;
+    }
+
+    public Flight join(String absoluteURL) { // Return the running fetch of the URL, or start a new one
+        return inFlight.compute(absoluteURL, (url, flight) -> {
+            Flight joined = (flight != null) ? flight : new Flight(url);
+            joined.addParticipant(); // Inside compute, so that a detached flight cannot gain new participants
+            return joined;
+        });
+    }
+
+    // Called by the leader once the whole response has been received and published to the cache.
+    // Framed responses state their own length
+    public void complete(Flight flight, boolean framed) {
+        flight.finish(true, framed);
+        inFlight.remove(flight.absoluteURL, flight);
+    }
+
+    // Called by the leader when the origin answered the revalidation with 304, the cached document is still valid
+    public void completeNotModified(Flight flight) {
+        synchronized (flight) {
+            flight.notModified = true;
+        }
+        complete(flight, true);
+    }
+
+    public void fail(Flight flight) { // Called by the leader if the upstream fetch could not be completed
+        flight.finish(false, false);
+        inFlight.remove(flight.absoluteURL, flight);
+    }
+
+    public final class Flight {
+        private final String absoluteURL;
+        private final AtomicBoolean leaderClaimed = new AtomicBoolean();
+        private Function<String, String> leaderHeaders; // Request headers of the leader, set before the fetch starts
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(); // Response head so far, fetch only
+        private boolean headComplete; // Fetch only
+        private boolean headParsed; // Whether variant is known, guarded by this
+        private CacheMetadata variant; // Parsed response head, for Vary, guarded by this
+        private Cache.CacheWriter writer; // Temporary cache file of the response, null once published or aborted
+        private FileChannel reader; // Shared by the waiters, only positional reads are used
+        private long size; // Number of bytes received so far, guarded by this
+        private int participants; // Leader and waiters that have not left yet, guarded by this
+        private boolean detached; // Removed from the map, no new participant can join, guarded by this
+        private boolean spoolBroken; // The spooled bytes are incomplete, guarded by this
+        private boolean done; // Guarded by this
+        private boolean succeeded; // Guarded by this
+        private boolean framed; // Guarded by this
+        private boolean notModified; // No body was spooled, the waiters are served from the cache, guarded by this
+
+        private Flight(String absoluteURL) {
+            this.absoluteURL = absoluteURL;
+        }
+
+        private synchronized void addParticipant() {
+            participants++;
+        }
+
+        // Exactly one caller fetches from the origin, the others wait on it. The leader opens the cache writer
+        public boolean claimLeadership(Function<String, String> requestHeaders) {
+            if (!leaderClaimed.compareAndSet(false, true)) {
+                return false;
+            }
+            leaderHeaders = requestHeaders;
+            try {
+                Cache.CacheWriter opened = cache.openCacheWriter(absoluteURL, requestHeaders);
+                synchronized (this) {
+                    writer = opened;
+                }
+                FileChannel openedReader = opened.openReader();
+                synchronized (this) {
+                    reader = openedReader;
+                }
+            } catch (IOException e) { // Nothing can be spooled, the clients of the flight get an error
+                Log.warn("Cache writer cannot be opened: ", e.getMessage());
+                stopSpooling();
+            }
+            return true;
+        }
+
+        public void append(byte[] buffer, int offset, int length) { // Spool a chunk for the waiters and the cache
+            Cache.CacheWriter current;
+            synchronized (this) {
+                current = writer;
+            }
+            if (current == null) {
+                return;
+            }
+            try {
+                current.write(buffer, offset, length); // Written outside the lock, only the leader writes
+            } catch (IOException e) {
+                Log.warn("Response cannot be written to the cache: ", e.getMessage());
+                stopSpooling();
+                return;
+            }
+            CacheMetadata parsed = parseHead(buffer, offset, length);
+            synchronized (this) {
+                size += length;
+                if (parsed != null) {
+                    variant = parsed;
+                    headParsed = true;
+                }
+                notifyAll();
+                if (!current.isOversized() || detached) {
+                    return;
+                }
+                detached = true;
+            }
+            // Too large to be cached, later requests fetch it on their own. The clients already in the flight are
+            // still served from the spool, it is deleted when the flight ends
+            inFlight.remove(absoluteURL, this);
+        }
+
+        private CacheMetadata parseHead(byte[] buffer, int offset, int length) { // The head once it is complete, else null
+            if (headComplete) {
+                return null;
+            }
+            head.write(buffer, offset, Math.min(length, MAX_HEAD_BYTES - head.size()));
+            byte[] bytes = head.toByteArray();
+            if (!hasEndOfHead(bytes) && bytes.length < MAX_HEAD_BYTES) {
+                return null;
+            }
+            headComplete = true; // A longer head is parsed as far as it goes, as the cache does
+            return CacheMetadata.parse(ByteBuffer.wrap(bytes), System.currentTimeMillis(), leaderHeaders);
+        }
+
+        private static boolean hasEndOfHead(byte[] bytes) { // The empty line, with or without carriage returns
+            for (int i = 1; i < bytes.length; i++) {
+                if (bytes[i] == '\n' && (bytes[i - 1] == '\n' || i >= 2 && bytes[i - 1] == '\r' && bytes[i - 2] == '\n')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void stopSpooling() { // Discard the temporary file, waiters that still need its bytes fail
+            Cache.CacheWriter current;
+            synchronized (this) {
+                current = writer;
+                writer = null;
+                spoolBroken = true;
+                notifyAll();
+            }
+            if (current != null) {
+                current.abort();
+            }
+        }
+
+        public boolean publishToCache() { // Called by the leader before complete, returns false if not cached
+            Cache.CacheWriter current;
+            synchronized (this) {
+                current = writer;
+                writer = null; // Waiters keep reading through the reader, the file is only renamed
+            }
+            return current != null && current.commit();
+        }
+
+        // Whether the response can be served to a waiter with these request headers. A response that Vary on a header
+        // serves only the waiters sending the same value as the leader, Vary: * none of them. Waits for the response
+        // head; if the flight ends without one, streamTo tells the waiter what happened
+        public boolean servesVariant(Function<String, String> requestHeaders) {
+            CacheMetadata parsed;
+            synchronized (this) {
+                while (!headParsed && !done && !spoolBroken) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return true; // streamTo gives up on the interrupt
+                    }
+                }
+                parsed = variant;
+            }
+            return parsed == null || parsed.matchesVariant(requestHeaders);
+        }
+
+        // Stream the response to a client as the bytes arrive, counting them in servedBytes. Returns false if the
+        // fetch failed
+        public boolean streamTo(WritableByteChannel outputResponse, LongAdder servedBytes) throws IOException {
+            long written = 0;
+            while (true) {
+                long available;
+                boolean finished;
+                boolean result;
+                FileChannel spool;
+                synchronized (this) {
+                    while (size == written && !done && !spoolBroken) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return false;
+                        }
+                    }
+                    if (!done && spoolBroken || reader == null) { // Spooling stopped before the response was complete
+                        return false;
+                    }
+                    available = size;
+                    finished = done; // Once the flight is done no more bytes are appended
+                    result = succeeded;
+                    spool = reader; // Stays open until this participant leaves
+                }
+                while (written < available) { // Bytes below size are never modified, they are sent without the lock
+                    written += spool.transferTo(written, available - written, outputResponse);
+                }
+                if (finished) {
+                    servedBytes.add(written);
+                    return result;
+                }
+            }
+        }
+
+        public void leave() { // Called by every participant when it is done with the flight
+            FileChannel toClose = null;
+            synchronized (this) {
+                if (--participants == 0) {
+                    toClose = reader;
+                    reader = null;
+                }
+            }
+            if (toClose != null) {
+                try {
+                    toClose.close();
+                } catch (IOException e) {
+                    Log.warn("Temporary cache file cannot be closed.");
+                }
+            }
+        }
+
+        private void finish(boolean succeeded, boolean framed) {
+            synchronized (this) {
+                this.done = true;
+                this.succeeded = succeeded;
+                this.framed = framed;
+                notifyAll();
+            }
+            stopSpooling(); // Aborts the writer if the response was not published
+        }
+
+        public synchronized boolean isNotModified() {
+            return notModified;
+        }
+
+        public synchronized boolean isFramed() {
+            return framed;
+        }
+
+        public synchronized boolean hasData() {
+            return size > 0;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A single selector thread accepts connections and reads their request heads without blocking. Only connections
+// whose whole request head has been received are handed to the bounded worker pool, so idle and slow clients do
+// not hold any thread. Persistent connections come back to the selector between requests. Internal requests, see
+// ConnectionHandler.isInternalRequest, have a worker pool of their own.
+public class SelectorConnectionEngine extends ConnectionEngine {
+    private static final long IDLE_CHECK_INTERVAL_MILLIS = 1000;
+
+    private final ExecutorService workers;
+    private final ExecutorService internalWorkers; // Threads are only started for internal requests
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final Queue<ClientConnection> returningConnections = new ConcurrentLinkedQueue<>(); // Waiting for their next request
+    private Selector selector;
+
+    public SelectorConnectionEngine(int maxConnections, int workerThreads) {
+        super(maxConnections);
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.internalWorkers = Executors.newFixedThreadPool(workerThreads);
+    }
+
+    @Override
+    public void serve(ServerSocketChannel serverChannel, ConnectionHandler handler) throws IOException {
+        selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        SelectionKey acceptKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        List<ClientConnection> readyConnections = new ArrayList<>(); // Readable connections whose keys have been cancelled
+        long lastIdleCheck = System.currentTimeMillis();
+
+        while (serverChannel.isOpen()) {
+            if (readyConnections.isEmpty()) {
+                selector.select(IDLE_CHECK_INTERVAL_MILLIS);
+            } else {
+                selector.selectNow(); // Deregisters the cancelled keys, so the channels can be switched to blocking mode
+            }
+            for (ClientConnection connection : readyConnections) {
+                dispatch(connection, handler);
+            }
+            readyConnections.clear();
+            ClientConnection returning;
+            while ((returning = returningConnections.poll()) != null) {
+                register(returning);
+            }
+            if (acceptKey.interestOps() == 0 && activeConnections.get() < maxConnections) {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT); // Capacity is available again, resume accepting
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept(serverChannel, acceptKey);
+                } else if (key.isReadable()) { // The client has sent data, hand the connection to a worker once its head is complete
+                    ClientConnection connection = (ClientConnection) key.attachment();
+                    if (readRequestHead(connection)) {
+                        key.cancel();
+                        readyConnections.add(connection);
+                    }
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL_MILLIS) {
+                closeIdleConnections(now);
+                lastIdleCheck = now;
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, SelectionKey acceptKey) throws IOException {
+        while (activeConnections.get() < maxConnections) {
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) { // No more pending connections
+                return;
+            }
+            activeConnections.incrementAndGet();
+            try {
+                register(new ClientConnection(channel));
+            } catch (IOException e) {
+                channel.close();
+                activeConnections.decrementAndGet();
+            }
+        }
+        acceptKey.interestOps(0); // Backpressure, new clients wait in the accept backlog until a connection closes
+    }
+
+    private void register(ClientConnection connection) { // Wait for the next request of the connection
+        try {
+            connection.touch();
+            connection.getChannel().configureBlocking(false);
+            connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+        } catch (IOException e) {
+            close(connection);
+        }
+    }
+
+    // Buffer what the client has sent in the parser of the connection. Returns true if the handler can read the
+    // request without blocking. A partial head does not count as activity, it has to be completed within the idle timeout
+    private boolean readRequestHead(ClientConnection connection) {
+        try {
+            return connection.getRequest().readAvailable(connection.getChannel());
+        } catch (IOException e) {
+            close(connection);
+            return false;
+        }
+    }
+
+    private void dispatch(ClientConnection connection, ConnectionHandler handler) {
+        try {
+            connection.getChannel().configureBlocking(true); // Handlers use blocking streams
+        } catch (IOException e) {
+            close(connection);
+            return;
+        }
+        ExecutorService executor = handler.isInternalRequest(connection) ? internalWorkers : workers;
+        executor.execute(() -> {
+            if (handleSafely(handler, connection)) {
+                returningConnections.add(connection); // Registered again by the selector thread
+                selector.wakeup();
+            } else {
+                close(connection);
+            }
+        });
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof ClientConnection) {
+                ClientConnection connection = (ClientConnection) key.attachment();
+                if (now - connection.getLastActiveMillis() >= ClientConnection.IDLE_TIMEOUT_MILLIS) {
+                    close(connection); // Closing the channel also cancels its key
+                }
+            }
+        }
+    }
+
+    private void close(ClientConnection connection) {
+        connection.close();
+        if (activeConnections.getAndDecrement() == maxConnections) {
+            selector.wakeup(); // Let the selector thread resume accepting
+        }
+    }
+}
@@ -1,69 +1,112 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 
-public class Session implements Runnable {
-    private final Socket socket;  // A new session with the Client socket
+public class Session { // A persistent connection with the Client, serving its requests one after another
+    private final ClientConnection connection;
+    private InputStream inputRequest; // Kept between the requests of the connection
+    private final HttpRequestParser request; // Reuses its buffer for every request
+    private final ByteBuffer[] responseParts = new ByteBuffer[DocumentResponses.MAX_PARTS]; // Reused for every response
 
-    public Session(Socket socket) {
-        this.socket = socket;
+    public Session(ClientConnection connection) {
+        this.connection = connection;
+        this.request = connection.getRequest();
     }
 
-    @Override
-    public void run() { // Input request is the request came from the client, output message will be the response of the server
-        try (BufferedReader inputRequest = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter outputMessage = new PrintWriter(socket.getOutputStream(), true)) {
+    // Serve the next request and the pipelined ones already received. Returns true if the connection stays open
+    public boolean serve() {
+        try {
+            if (inputRequest == null) { // First request of the connection
+                inputRequest = connection.getSocket().getInputStream();
+            }
+            do {
+                if (!serveRequest()) {
+                    return false;
+                }
+            } while (request.hasBufferedRequest()); // Next request is already buffered, it was pipelined
+            return true;
+        } catch (IOException e) { // Connection error between server and client occurred, or the connection was idle
+            Log.debug("Connection error.");
+            return false;
+        }
+    }
 
-            String strInputRequest = inputRequest.readLine(); // Read the request as String
-            String[] strInputRequestParts = strInputRequest.split(" "); // Split the request into parts
+    // Input request is the request came from the client, output message will be the response of the server
+    private boolean serveRequest() throws IOException {
+        try {
+            if (!request.readRequest(inputRequest)) { // The client closed the connection
+                return false;
+            }
+            request.skipBody(inputRequest); // No method of this server uses a body, it is framed and dropped
+        } catch (HttpRequestParser.ParseException e) { // The request cannot be framed, close after responding
+            sendResponse(DocumentResponses.error(e.getStatusCode(), e.getMessage(), false, responseParts));
+            return false;
+        }
+        // The connection is closed after the request limit. HTTP/1.1 is persistent unless the client asks to close
+        boolean keepAlive = connection.startRequest()
+                && (request.isVersion("HTTP/1.1") || request.hasToken("Connection", "keep-alive"))
+                && !request.hasToken("Connection", "close");
 
-            System.out.println("Request: " + strInputRequest);
+        if (Log.isEnabled(Log.Level.DEBUG)) { // The request line is only turned into a String when it is logged
+            Log.debug("Request: ", request.getRequestLine());
+        }
 
-            int documentSize;
-            try {
-                documentSize = Integer.parseInt(strInputRequestParts[1].substring(1)); // Retrieve the requested document size
-                if (!strInputRequestParts[0].equals("GET")) { // If the HTTP method is any other than GET method, not implemented
-                    sendResponse(outputMessage, "501 Not Implemented", "text/plain", "Not Implemented");
-                    return;
-                } else if (documentSize < 100 || documentSize > 20000) { // If the size of the requested HTML doc is invalid, bad request
-                    sendResponse(outputMessage, "400 Bad Request", "text/plain", "Bad Request");
-                    return;
+        if (!request.isMethod("GET")) { // If the HTTP method is any other than GET method, not implemented
+            sendResponse(DocumentResponses.error(501, "Not Implemented", keepAlive, responseParts));
+            return keepAlive;
+        }
+        long documentSize = request.getTargetNumber(1); // Retrieve the requested document size, after the "/"
+        if (documentSize < DocumentResponses.MIN_DOCUMENT_SIZE || documentSize > DocumentResponses.MAX_DOCUMENT_SIZE) {
+            // If the size is not a number or invalid, bad request
+            sendResponse(DocumentResponses.error(400, "Bad Request", keepAlive, responseParts));
+            return keepAlive;
+        }
+        // If the code still hasn't returned, then request is valid. The document only depends on its size
+        int size = (int) documentSize;
+        if (isNotModified(DocumentResponses.etagOf(size))) { // The client's copy is still valid, no body is sent
+            sendResponse(DocumentResponses.notModified(size, keepAlive, responseParts));
+            return keepAlive;
+        }
+        sendResponse(DocumentResponses.document(size, keepAlive, responseParts)); // Send the requested HTML document
+        return keepAlive;
+    }
+
+    // If-None-Match takes precedence, If-Modified-Since is only used without it
+    private boolean isNotModified(String etag) {
+        if (request.headerValueEquals("If-None-Match", etag)) { // The usual case, the ETag a cache received from us
+            return true;
+        }
+        String ifNoneMatch = request.headerValue("If-None-Match"); // Validators of the client's cached copy
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || candidate.equals(etag) || candidate.equals("W/" + etag)) {
+                    return true;
                 }
-            } catch (NumberFormatException e) {  // If the second part of the request cannot be converted into an int, invalid request
-                sendResponse(outputMessage, "400 Bad Request", "text/plain", "Bad Request");
-                return;
             }
-            // If the code still hasn't returned, then request is valid. Send the requested HTML document
-            sendResponse(outputMessage, "200 OK", "text/html", returnHTML(documentSize));
-        } catch (IOException e) { // Connection error between server and client occurred
-            System.out.println("Connection error.");
-        } finally {
+            return false;
+        }
+        String ifModifiedSince = request.headerValue("If-Modified-Since");
+        if (ifModifiedSince != null) {
             try {
-                socket.close(); // After the session is completed, close the socket
-            } catch (IOException e) { // The socket cannot be closed
-                System.out.println("Socket cannot be closed.");
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return since >= DocumentResponses.START_TIME_MILLIS;
+            } catch (DateTimeParseException e) { // Invalid dates are ignored
+                return false;
             }
         }
+        return false;
     }
 
-    private String returnHTML(int size) {
-        String html = "<HTML><HEAD><TITLE>HTML Document</TITLE></HEAD><BODY>"; // Header of the HTML document, size = 53
-        int contentSize = size - 67; // Calculate the size of the repeated a's
-        String content = ""; // Content of the HTML document
-        for (int i = 0; i < contentSize; i++) {
-            content += 'a'; // Repeatedly add a's for desired amount
+    private void sendResponse(int partCount) throws IOException { // Write the parts filled by DocumentResponses at once
+        try {
+            DocumentResponses.write(connection.getChannel(), responseParts, partCount);
+        } finally {
+            Arrays.fill(responseParts, null); // Do not keep the buffers of the last response
         }
-        html += content + "</BODY></HTML>"; // End of the HTML document, size = 14
-        return html;
-    }
-
-    private void sendResponse(PrintWriter outputMessage, String httpResponse, String contentType, String responseContent) {
-        outputMessage.println( "HTTP/1.0 " + httpResponse + "\n" + // HTTP response
-                                "Content-Type: " + contentType + "\n" +  // Content Type
-                                "Content-Length: " + responseContent.length() + "\n\n" +  // Content Length
-                                responseContent); // HTML content
-        outputMessage.flush(); // Flush the output response, so the HTML document can be seen on the browser
     }
-}
\ No newline at end of file
+}
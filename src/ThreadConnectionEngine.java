@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+public class ThreadConnectionEngine extends ConnectionEngine { // One (platform or virtual) thread per connection
+    private final ExecutorService executor;
+    private final Semaphore connectionPermits; // Stop accepting when the connection limit is reached
+
+    public ThreadConnectionEngine(int maxConnections, ExecutorService executor) {
+        super(maxConnections);
+        this.executor = executor;
+        this.connectionPermits = new Semaphore(maxConnections);
+    }
+
+    @Override
+    public void serve(ServerSocketChannel serverChannel, ConnectionHandler handler) throws IOException {
+        serverChannel.configureBlocking(true);
+        while (serverChannel.isOpen()) {
+            connectionPermits.acquireUninterruptibly(); // Backpressure, new clients wait in the accept backlog
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept(); // Accept the client connections
+            } catch (IOException e) {
+                connectionPermits.release();
+                throw e;
+            }
+            executor.execute(() -> {
+                ClientConnection connection = null;
+                try {
+                    connection = new ClientConnection(channel);
+                    while (handleSafely(handler, connection)) { // Handle the client requests in its own thread
+                    }
+                } catch (IOException e) {
+                    Log.debug("Connection error with Client Socket");
+                } finally {
+                    if (connection != null) {
+                        connection.close();
+                    } else {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            Log.warn("Socket cannot be closed.");
+                        }
+                    }
+                    connectionPermits.release();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// A keep-alive connection from the proxy to an origin server. The end of every response is found from its
+// Content-Length or chunked framing, so the connection can be reused for the next request.
+public class UpstreamConnection implements Closeable {
+    private static final int MAX_LINE_LENGTH = 8192; // Longer status, header or chunk size lines are rejected
+
+    private final String hostKey; // "host:port" of the origin, the key of the pool
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+    private final int readTimeoutMillis; // Set on the socket by the pool, a silent server is an error
+    private final byte[] lineBuffer = new byte[MAX_LINE_LENGTH]; // Reused for every line of every response
+    // Response bytes on their way to the sink, reused for every response. Lines are collected in it, so that the
+    // head and the start of the body reach the sink in one write instead of one write per line
+    private final byte[] responseBuffer = new byte[16384];
+    private int pending; // Bytes of responseBuffer not written to the sink yet
+    private long lastUsedMillis = System.currentTimeMillis();
+    private boolean reused; // Whether the connection already served a response before the current one
+    private boolean responseStarted; // Whether any byte of the current response has been received
+    private boolean responseFramed; // Whether the end of the last response was found from its framing
+    private int rawLineLength; // Length of the last line read, CRLF included
+
+    public UpstreamConnection(String hostKey, Socket socket) throws IOException {
+        this.hostKey = hostKey;
+        this.socket = socket;
+        this.input = new BufferedInputStream(socket.getInputStream());
+        this.output = new BufferedOutputStream(socket.getOutputStream());
+        this.readTimeoutMillis = socket.getSoTimeout();
+    }
+
+    // Send the request and copy the whole response, headers included, into the sink. Hop-by-hop headers are
+    // not copied, they only apply to this connection. The first response byte has to arrive within the given
+    // time, the others within the read timeout of the socket. Returns true if the connection can be reused
+    public boolean exchange(byte[] requestHead, int requestLength, OutputStream sink, int firstByteTimeoutMillis) throws IOException {
+        responseStarted = false;
+        responseFramed = true;
+        pending = 0;
+        long requestStart = System.nanoTime();
+        output.write(requestHead, 0, requestLength); // Forward the request to the HTTP server
+        output.flush();
+
+        if (firstByteTimeoutMillis != readTimeoutMillis) {
+            socket.setSoTimeout(firstByteTimeoutMillis);
+        }
+        int length = readLine();
+        if (length < 0) { // The server closed the connection before responding, e.g. a stale pooled connection
+            throw new EOFException("Connection closed by the HTTP server");
+        }
+        if (firstByteTimeoutMillis != readTimeoutMillis) {
+            socket.setSoTimeout(readTimeoutMillis);
+        }
+        Metrics.UPSTREAM_FIRST_BYTE.record(System.nanoTime() - requestStart);
+        responseStarted = true;
+        forwardLine(sink);
+        String statusLine = new String(lineBuffer, 0, length, StandardCharsets.ISO_8859_1).trim();
+        String[] statusParts = statusLine.split(" ", 3);
+        if (statusParts.length < 2 || !statusParts[0].startsWith("HTTP/")) {
+            throw new IOException("Invalid status line from HTTP server: " + statusLine);
+        }
+        int statusCode;
+        try {
+            statusCode = Integer.parseInt(statusParts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status code from HTTP server: " + statusLine);
+        }
+        boolean keepAlive = statusParts[0].equals("HTTP/1.1"); // HTTP/1.1 is persistent unless stated otherwise
+        long contentLength = -1;
+        boolean chunked = false;
+
+        while ((length = readLine()) > 0) { // Read the headers until the empty line
+            String headerLine = new String(lineBuffer, 0, length, StandardCharsets.ISO_8859_1);
+            int colonIndex = headerLine.indexOf(':');
+            String name = (colonIndex > 0) ? headerLine.substring(0, colonIndex).trim() : "";
+            if (!name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Keep-Alive")) {
+                forwardLine(sink);
+            }
+            if (colonIndex <= 0) {
+                continue;
+            }
+            String value = headerLine.substring(colonIndex + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length from HTTP server: " + value);
+                }
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().endsWith("chunked");
+            } else if (name.equalsIgnoreCase("Connection")) {
+                String tokens = value.toLowerCase();
+                if (tokens.contains("close")) {
+                    keepAlive = false;
+                } else if (tokens.contains("keep-alive")) {
+                    keepAlive = true;
+                }
+            }
+        }
+        if (length < 0) {
+            throw new EOFException("Connection closed inside the response headers");
+        }
+        forwardLine(sink); // The empty line ending the headers
+
+        if ((statusCode >= 100 && statusCode < 200) || statusCode == 204 || statusCode == 304) { // Responses without a body
+            flush(sink);
+            return keepAlive;
+        } else if (chunked) {
+            copyChunkedBody(sink);
+            flush(sink);
+            return keepAlive;
+        } else if (contentLength >= 0) {
+            copyBody(contentLength, sink);
+            flush(sink);
+            return keepAlive;
+        }
+        responseFramed = false;
+        while (readBody(Integer.MAX_VALUE, sink) != -1) { // No framing, the body ends when the server closes
+            flush(sink);
+        }
+        flush(sink);
+        return false;
+    }
+
+    private void copyChunkedBody(OutputStream sink) throws IOException {
+        while (true) {
+            int length = readLine(); // Chunk size in hexadecimal, optionally followed by extensions
+            if (length < 0) {
+                throw new EOFException("Connection closed inside a chunked body");
+            }
+            forwardLine(sink);
+            String sizeLine = new String(lineBuffer, 0, length, StandardCharsets.ISO_8859_1);
+            int semicolonIndex = sizeLine.indexOf(';');
+            long chunkSize;
+            try {
+                chunkSize = Long.parseLong((semicolonIndex >= 0 ? sizeLine.substring(0, semicolonIndex) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size from HTTP server: " + sizeLine);
+            }
+            if (chunkSize == 0) { // Last chunk, read the trailers until the empty line
+                do {
+                    length = readLine();
+                    if (length < 0) {
+                        throw new EOFException("Connection closed inside the chunked trailers");
+                    }
+                    forwardLine(sink);
+                } while (length > 0);
+                return;
+            }
+            copyBody(chunkSize, sink);
+            if (readLine() != 0) { // Every chunk ends with CRLF
+                throw new IOException("Invalid chunk terminator from HTTP server");
+            }
+            forwardLine(sink);
+            if (input.available() == 0) { // The next chunk may take a while, pass on this one
+                flush(sink);
+            }
+        }
+    }
+
+    private void copyBody(long remaining, OutputStream sink) throws IOException {
+        while (remaining > 0) {
+            int bytesRead = readBody(remaining, sink);
+            if (bytesRead == -1) {
+                throw new EOFException("Connection closed inside the response body");
+            }
+            remaining -= bytesRead;
+            if (remaining > 0) { // The rest of the body may take a while, pass on what has been received
+                flush(sink);
+            }
+        }
+    }
+
+    // Read up to maxLength body bytes after the pending ones. The pending bytes are written first if the read would
+    // block or there is no room for the body. Returns the number of bytes read, or -1 at the end of stream
+    private int readBody(long maxLength, OutputStream sink) throws IOException {
+        if (pending == responseBuffer.length || (pending > 0 && input.available() == 0)) {
+            flush(sink);
+        }
+        int bytesRead = input.read(responseBuffer, pending, (int) Math.min(responseBuffer.length - pending, maxLength));
+        if (bytesRead > 0) {
+            pending += bytesRead;
+        }
+        return bytesRead;
+    }
+
+    // Read a line into lineBuffer. Returns its length without CRLF, or -1 at the end of stream
+    private int readLine() throws IOException {
+        int length = 0;
+        int b;
+        while ((b = input.read()) != -1) {
+            if (length == lineBuffer.length) {
+                throw new IOException("Line from HTTP server is too long");
+            }
+            lineBuffer[length++] = (byte) b;
+            if (b == '\n') {
+                rawLineLength = length;
+                int end = length - 1;
+                if (end > 0 && lineBuffer[end - 1] == '\r') {
+                    end--;
+                }
+                return end;
+            }
+        }
+        if (length > 0) {
+            throw new EOFException("Connection closed inside a line");
+        }
+        return -1;
+    }
+
+    private void forwardLine(OutputStream sink) throws IOException { // Queue the last line read, CRLF included
+        if (pending + rawLineLength > responseBuffer.length) {
+            flush(sink);
+        }
+        System.arraycopy(lineBuffer, 0, responseBuffer, pending, rawLineLength);
+        pending += rawLineLength;
+    }
+
+    private void flush(OutputStream sink) throws IOException { // Write the pending bytes to the sink at once
+        if (pending > 0) {
+            sink.write(responseBuffer, 0, pending);
+            pending = 0;
+        }
+    }
+
+    public String getHostKey() {
+        return hostKey;
+    }
+
+    public long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    public boolean isReused() {
+        return reused;
+    }
+
+    public boolean isResponseFramed() {
+        return responseFramed;
+    }
+
+    public boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    void markReleased() { // Called by the pool when the connection goes back to the idle list
+        lastUsedMillis = System.currentTimeMillis();
+        reused = true;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("Upstream socket cannot be closed.");
+        }
+    }
+}
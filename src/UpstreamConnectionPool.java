@@ -0,0 +1,135 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.*;
+
+public class UpstreamConnectionPool { // Per host pool of keep-alive connections to the origin servers
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int READ_TIMEOUT_MILLIS = 10000; // A silent server is an error, not the end of a response
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutMillis;
+    private final Map<String, HostPool> hostPools = new ConcurrentHashMap<>(); // Have a "host:port":"connections" mapping
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upstream-idle-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public UpstreamConnectionPool(int maxConnectionsPerHost, long idleTimeoutMillis) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdleConnections, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Send the request on a pooled connection and copy the response into the sink. A stale pooled connection,
+    // closed or reset by the server before any response byte is received, is discarded and the request is retried.
+    // A read timeout is not retried: the server may still be working on the request
+    // Returns true if the response was framed, i.e. its end was known without the server closing the connection
+    public boolean exchange(String host, int port, byte[] requestHead, int length, OutputStream sink) throws IOException {
+        return exchange(host, port, requestHead, length, sink, READ_TIMEOUT_MILLIS);
+    }
+
+    // The same, but both a free connection and the first response byte are only waited for the given time. Used
+    // where a slow answer is worse than asking elsewhere, a SocketTimeoutException is thrown after it
+    public boolean exchange(String host, int port, byte[] requestHead, int length, OutputStream sink,
+                            int timeoutMillis) throws IOException {
+        while (true) {
+            UpstreamConnection connection = acquire(host, port, timeoutMillis);
+            try {
+                boolean reusable = connection.exchange(requestHead, length, sink, timeoutMillis);
+                release(connection, reusable);
+                return connection.isResponseFramed();
+            } catch (IOException e) {
+                release(connection, false);
+                if (!connection.isReused() || connection.isResponseStarted() || !isClosedByServer(e)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean isClosedByServer(IOException e) { // End of stream, connection reset or broken pipe
+        return e instanceof EOFException || e instanceof SocketException;
+    }
+
+    public UpstreamConnection acquire(String host, int port) throws IOException {
+        return acquire(host, port, READ_TIMEOUT_MILLIS);
+    }
+
+    private UpstreamConnection acquire(String host, int port, int permitTimeoutMillis) throws IOException {
+        String hostKey = host + ":" + port;
+        HostPool hostPool = hostPools.computeIfAbsent(hostKey, key -> new HostPool());
+        UpstreamConnection connection;
+        while ((connection = hostPool.idle.pollLast()) != null) { // Most recently used connection first
+            if (System.currentTimeMillis() - connection.getLastUsedMillis() < idleTimeoutMillis) {
+                Metrics.UPSTREAM_CONNECTIONS_REUSED.increment();
+                return connection;
+            }
+            closeConnection(hostPool, connection);
+        }
+        try {
+            if (!hostPool.permits.tryAcquire(permitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("Too many connections to " + hostKey);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + hostKey);
+        }
+        Socket socket = new Socket();
+        try {
+            long connectStart = System.nanoTime();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS); // Connect to HTTP server
+            Metrics.UPSTREAM_CONNECT.record(System.nanoTime() - connectStart);
+            Metrics.UPSTREAM_CONNECTIONS_OPENED.increment();
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            return new UpstreamConnection(hostKey, socket);
+        } catch (IOException e) {
+            socket.close();
+            hostPool.permits.release();
+            throw e;
+        }
+    }
+
+    public void release(UpstreamConnection connection, boolean reusable) { // Return the connection or close it
+        HostPool hostPool = hostPools.get(connection.getHostKey());
+        if (reusable) {
+            connection.markReleased();
+            hostPool.idle.offerLast(connection);
+        } else {
+            closeConnection(hostPool, connection);
+        }
+    }
+
+    private void evictIdleConnections() { // Close connections that have been idle for too long, oldest first
+        long now = System.currentTimeMillis();
+        for (HostPool hostPool : hostPools.values()) {
+            Iterator<UpstreamConnection> iterator = hostPool.idle.iterator();
+            while (iterator.hasNext()) {
+                UpstreamConnection connection = iterator.next();
+                if (now - connection.getLastUsedMillis() >= idleTimeoutMillis && hostPool.idle.removeFirstOccurrence(connection)) {
+                    closeConnection(hostPool, connection);
+                }
+            }
+        }
+    }
+
+    private void closeConnection(HostPool hostPool, UpstreamConnection connection) {
+        connection.close();
+        hostPool.permits.release();
+    }
+
+    private final class HostPool {
+        private final Deque<UpstreamConnection> idle = new ConcurrentLinkedDeque<>(); // Idle connections, oldest first
+        private final Semaphore permits = new Semaphore(maxConnectionsPerHost); // Open connections, idle ones included
+    }
+}